@@ -0,0 +1,221 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.demo.knn.KnnVectorDict;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.VectorUtil;
+
+/**
+ * Computes the same embeddings as {@link org.apache.lucene.demo.knn.DemoEmbeddings} (the normalized sum
+ * of the vectors of the lowercased tokens), but for a batch of documents at a time.
+ *
+ * <p>
+ * Each document is tokenized once into the frequencies of its terms. The distinct terms of the whole
+ * batch are then looked up together in the dictionary, that can't be read by several threads at the
+ * same time, and kept in a cache shared by all the threads, so frequent terms are read only once.
+ * Vectors are added in per-thread scratch arrays and written in the array of the caller, and
+ * documents with the same contents hash can reuse the vector of the first one.
+ */
+public class BatchEmbeddings implements Closeable {
+
+	/** Document of a batch */
+	static final class Text {
+		// Contents of the file, or null if they must be read from the file
+		final ByteBuffer contents;
+		final Path file;
+		// Hash of the contents, to reuse the vector of identical documents. It may be null
+		final String hash;
+		// Array where the embedding is written
+		final float[] vector;
+		// Frequencies of the terms, while the batch is computed
+		Map<String, Integer> terms;
+		boolean failed;
+
+		Text(ByteBuffer contents, Path file, String hash, float[] vector) {
+			this.contents = contents;
+			this.file = file;
+			this.hash = hash;
+			this.vector = vector;
+		}
+	}
+
+	/** Arrays of each thread, reused for every batch */
+	private final class Scratch {
+		final byte[] bytes = new byte[dimension * Float.BYTES];
+		final FloatBuffer floats = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		final float[] sum = new float[dimension];
+	}
+
+	// Maximum number of term vectors kept in memory
+	private static final int MAX_CACHED_TERMS = 1 << 16;
+
+	private final KnnVectorDict dict;
+	private final int dimension;
+	private final Analyzer analyzer = new Analyzer() {
+		@Override
+		protected TokenStreamComponents createComponents(String fieldName) {
+			Tokenizer tokenizer = new StandardTokenizer();
+			return new TokenStreamComponents(tokenizer, new LowerCaseFilter(tokenizer));
+		}
+	};
+	private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+	private final Map<String, float[]> termVectors = new ConcurrentHashMap<>();
+	// Vectors of the last documents by contents hash, null if they are not cached
+	private final Map<String, float[]> hashVectors;
+
+	/**
+	 * @param dict       Dictionary of the vectors of the terms
+	 * @param cacheSize  Number of document vectors cached by contents hash, 0 to not cache them
+	 */
+	public BatchEmbeddings(KnnVectorDict dict, int cacheSize) {
+		this.dict = dict;
+		this.dimension = dict.getDimension();
+		if (cacheSize > 0) {
+			hashVectors = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+					return size() > cacheSize;
+				}
+			});
+		} else {
+			hashVectors = null;
+		}
+	}
+
+	/**
+	 * @return Dimension of the vectors
+	 */
+	public int getDimension() {
+		return dimension;
+	}
+
+	/**
+	 * Computes the embeddings of a batch of documents. A document whose file can't be read is marked as
+	 * failed and the rest of the batch is computed.
+	 *
+	 * @param texts Documents of the batch
+	 * @throws IOException If the dictionary can't be read
+	 */
+	void embed(List<Text> texts) throws IOException {
+		Scratch threadScratch = scratch.get();
+		List<String> missing = new ArrayList<>();
+
+		for (Text text : texts) {
+			float[] cached = text.hash != null && hashVectors != null ? hashVectors.get(text.hash) : null;
+			if (cached != null) {
+				System.arraycopy(cached, 0, text.vector, 0, dimension);
+				continue;
+			}
+			try {
+				text.terms = countTerms(text);
+			} catch (IOException e) {
+				e.printStackTrace(System.err);
+				text.failed = true;
+				continue;
+			}
+			for (String term : text.terms.keySet()) {
+				if (!termVectors.containsKey(term)) {
+					missing.add(term);
+				}
+			}
+		}
+
+		// One pass over the dictionary for the whole batch
+		Map<String, float[]> batchVectors = new HashMap<>();
+		if (!missing.isEmpty()) {
+			synchronized (dict) {
+				for (String term : missing) {
+					if (batchVectors.containsKey(term)) {
+						continue;
+					}
+					dict.get(new BytesRef(term), threadScratch.bytes);
+					float[] vector = new float[dimension];
+					threadScratch.floats.position(0);
+					threadScratch.floats.get(vector);
+					batchVectors.put(term, vector);
+				}
+			}
+			for (Map.Entry<String, float[]> entry : batchVectors.entrySet()) {
+				if (termVectors.size() >= MAX_CACHED_TERMS) {
+					break;
+				}
+				termVectors.putIfAbsent(entry.getKey(), entry.getValue());
+			}
+		}
+
+		for (Text text : texts) {
+			if (text.terms == null) {
+				continue;
+			}
+			float[] sum = threadScratch.sum;
+			Arrays.fill(sum, 0f);
+			for (Map.Entry<String, Integer> entry : text.terms.entrySet()) {
+				float[] vector = termVectors.get(entry.getKey());
+				if (vector == null) {
+					vector = batchVectors.get(entry.getKey());
+				}
+				int frequency = entry.getValue();
+				for (int i = 0; i < dimension; i++) {
+					sum[i] += frequency * vector[i];
+				}
+			}
+			VectorUtil.l2normalize(sum, false);
+			System.arraycopy(sum, 0, text.vector, 0, dimension);
+			text.terms = null;
+
+			if (text.hash != null && hashVectors != null) {
+				hashVectors.put(text.hash, sum.clone());
+			}
+		}
+	}
+
+	/**
+	 * @param text Document of a batch
+	 * @return Number of times that each term appears in the document
+	 * @throws IOException If the file can't be read
+	 */
+	private Map<String, Integer> countTerms(Text text) throws IOException {
+		Map<String, Integer> terms = new HashMap<>();
+		try (InputStream in = text.contents != null ? new IndexFiles.ByteBufferInputStream(text.contents.duplicate())
+				: Files.newInputStream(text.file);
+				Reader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+				TokenStream stream = analyzer.tokenStream("contents", reader)) {
+			CharTermAttribute termAttribute = stream.addAttribute(CharTermAttribute.class);
+			stream.reset();
+			while (stream.incrementToken()) {
+				terms.merge(termAttribute.toString(), 1, Integer::sum);
+			}
+			stream.end();
+		}
+		return terms;
+	}
+
+	@Override
+	public void close() {
+		analyzer.close();
+	}
+}
@@ -0,0 +1,157 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * State of an incremental crawl of IndexFiles.
+ *
+ * <p>
+ * It keeps a reader of the index as it was before the crawl started. For each file found we look
+ * for its "path" and compare the "modified" doc value (and, when it changed, the stored
+ * "contentsHash") so unchanged files are skipped without being analyzed again. Documents of files
+ * that were not found during the crawl are deleted at the end.
+ */
+public class IncrementalState implements Closeable {
+
+	/** Document of the index that belongs to a file */
+	static final class IndexedFile {
+		final LeafReader leaf;
+		final int doc;
+		final long modified;
+
+		IndexedFile(LeafReader leaf, int doc, long modified) {
+			this.leaf = leaf;
+			this.doc = doc;
+			this.modified = modified;
+		}
+	}
+
+	private final DirectoryReader reader;
+	// Paths found during the crawl, shared by all the threads
+	private final Set<String> seenPaths = ConcurrentHashMap.newKeySet();
+
+	final AtomicLong added = new AtomicLong();
+	final AtomicLong updated = new AtomicLong();
+	final AtomicLong skipped = new AtomicLong();
+	final AtomicLong deleted = new AtomicLong();
+
+	/**
+	 * @param dir Directory of the index. It may not contain an index yet
+	 * @throws IOException If the index can't be read
+	 */
+	public IncrementalState(Directory dir) throws IOException {
+		reader = DirectoryReader.indexExists(dir) ? DirectoryReader.open(dir) : null;
+	}
+
+	/**
+	 * Registers a file as found and looks for its document in the index.
+	 *
+	 * @param file File found during the crawl
+	 * @return Its document, or null if the file was not indexed
+	 * @throws IOException If there is a low-level I/O error
+	 */
+	IndexedFile find(Path file) throws IOException {
+		String path = file.toString();
+		seenPaths.add(path);
+		if (reader == null) {
+			return null;
+		}
+
+		Term term = new Term("path", path);
+		for (LeafReaderContext context : reader.leaves()) {
+			LeafReader leaf = context.reader();
+			PostingsEnum postings = leaf.postings(term, PostingsEnum.NONE);
+			if (postings == null) {
+				continue;
+			}
+			Bits liveDocs = leaf.getLiveDocs();
+			for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+				if (liveDocs == null || liveDocs.get(doc)) {
+					// Every document has the doc value, IndexFiles rejects indexes built without it
+					NumericDocValues modified = leaf.getNumericDocValues("modified");
+					long value = modified != null && modified.advanceExact(doc) ? modified.longValue() : Long.MIN_VALUE;
+					return new IndexedFile(leaf, doc, value);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param indexed Document of a file
+	 * @return The hash of the contents stored in the document, or null if it has none
+	 * @throws IOException If there is a low-level I/O error
+	 */
+	String storedHash(IndexedFile indexed) throws IOException {
+		return indexed.leaf.document(indexed.doc, Collections.singleton("contentsHash")).get("contentsHash");
+	}
+
+	/**
+	 * Deletes the documents of the files that were indexed but have not been found in this crawl.
+	 *
+	 * @param writer Writer of the index
+	 * @throws IOException If there is a low-level I/O error
+	 */
+	void deleteMissing(IndexWriter writer) throws IOException {
+		if (reader == null) {
+			return;
+		}
+		for (LeafReaderContext context : reader.leaves()) {
+			LeafReader leaf = context.reader();
+			Terms terms = leaf.terms("path");
+			if (terms == null) {
+				continue;
+			}
+			Bits liveDocs = leaf.getLiveDocs();
+			TermsEnum termsEnum = terms.iterator();
+			PostingsEnum postings = null;
+			BytesRef path;
+			while ((path = termsEnum.next()) != null) {
+				if (seenPaths.contains(path.utf8ToString())) {
+					continue;
+				}
+				postings = termsEnum.postings(postings, PostingsEnum.NONE);
+				for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+					if (liveDocs == null || liveDocs.get(doc)) {
+						writer.deleteDocuments(new Term("path", BytesRef.deepCopyOf(path)));
+						deleted.incrementAndGet();
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Summary of the changes applied by the crawl
+	 */
+	String summary() {
+		return added.get() + " added, " + updated.get() + " updated, " + skipped.get() + " skipped, "
+				+ deleted.get() + " deleted";
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (reader != null) {
+			reader.close();
+		}
+	}
+}
@@ -17,31 +17,52 @@
 
 import java.io.*;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.demo.knn.DemoEmbeddings;
 import org.apache.lucene.demo.knn.KnnVectorDict;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.IndexableFieldType;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
 
 /**
@@ -53,13 +74,39 @@ import org.apache.lucene.util.IOUtils;
  */
 public class IndexFiles implements AutoCloseable {
 	static final String KNN_DICT = "knn-dict";
+	// Number of files of the same folder that are indexed by one task of the pool
+	static final int FILE_BATCH_SIZE = 16;
+	// Files bigger than this are read as a stream instead of being kept whole in the heap
+	static final int STREAM_THRESHOLD = 1024 * 1024;
 
 	// Calculates embedding vectors for KnnVector search
-	private final DemoEmbeddings demoEmbeddings;
+	private final BatchEmbeddings embeddings;
 	private final KnnVectorDict vectorDict;
+	// State of the index before the crawl, only in incremental mode
+	private final IncrementalState incremental;
+	// Counters of the documents and bytes indexed
+	private final IndexingProgress progress;
 	private final Properties properties = new Properties();
-
-	private IndexFiles(KnnVectorDict vectorDict) throws IOException {
+	// Configuration resolved once from the properties, shared by all the threads
+	private final Settings settings;
+	// Real paths of the folders already walked, shared by all the threads
+	private final Set<Path> visitedFolders = ConcurrentHashMap.newKeySet();
+	// First path found for each contents hash, only in dedup mode
+	private final Map<String, String> canonicalPaths;
+	private final LongAdder duplicates = new LongAdder();
+	// After the crawl, in watch mode, every document replaces the previous one of its path
+	private volatile boolean live;
+	// In watch mode documents are written under the read lock and deleted under the write lock
+	private final ReadWriteLock liveLock = new ReentrantReadWriteLock();
+	// The hash of the contents is only computed by the modes that use it
+	private final boolean hashContents;
+
+	private IndexFiles(KnnVectorDict vectorDict, int embeddingCache, IncrementalState incremental,
+			IndexingProgress progress, boolean dedup) throws IOException {
+		this.canonicalPaths = dedup ? new ConcurrentHashMap<>() : null;
+		this.incremental = incremental;
+		this.hashContents = incremental != null || dedup || (vectorDict != null && embeddingCache > 0);
+		this.progress = progress;
 		try (OutputStream outputStream = new FileOutputStream("src/main/resources/config.properties")){
 			properties.setProperty("onlyFiles", ".java .c .txt .odt .doc .pdf");
 			properties.setProperty("onlyTopLines","12");
@@ -67,36 +114,143 @@ public class IndexFiles implements AutoCloseable {
 			properties.store(outputStream,null);
 
 		}
+		settings = new Settings(properties, InetAddress.getLocalHost().getHostName());
 		if (vectorDict != null) {
 			this.vectorDict = vectorDict;
-			demoEmbeddings = new DemoEmbeddings(vectorDict);
+			embeddings = new BatchEmbeddings(vectorDict, embeddingCache);
 		} else {
 			this.vectorDict = null;
-			demoEmbeddings = null;
+			embeddings = null;
+		}
+	}
+
+	/**
+	 * Configuration of the indexer, parsed once from the properties so that the threads don't
+	 * need to read them again for every file.
+	 */
+	static final class Settings {
+		// Name of the host that indexes the files
+		final String hostname;
+		// Extensions of the files that are indexed, null if all the files are indexed
+		final Set<String> onlyFiles;
+		// If every type of onlyFiles is a simple extension like '.txt', the extension of a file is enough to check it
+		final boolean onlyExtensions;
+		// If neither onlyTopLines nor onlyBottomLines exist, all the lines are stored
+		final boolean allLines;
+		final int onlyTopLines;
+		final int onlyBottomLines;
+
+		Settings(Properties properties, String hostname) {
+			this.hostname = hostname;
+
+			String var_onlyFiles = properties.getProperty("onlyFiles");
+			if (var_onlyFiles != null) {
+				Set<String> types = new HashSet<>(Arrays.asList(var_onlyFiles.trim().split("\\s+")));
+				onlyFiles = Collections.unmodifiableSet(types);
+				onlyExtensions = types.stream().allMatch(type -> type.lastIndexOf('.') == 0);
+			} else {
+				onlyFiles = null;
+				onlyExtensions = false;
+			}
+
+			String var_onlyTopLines = properties.getProperty("onlyTopLines");
+			String var_onlyBottomLines = properties.getProperty("onlyBottomLines");
+			allLines = var_onlyTopLines == null && var_onlyBottomLines == null;
+			onlyTopLines = var_onlyTopLines != null ? Integer.parseInt(var_onlyTopLines) : 0;
+			onlyBottomLines = var_onlyBottomLines != null ? Integer.parseInt(var_onlyBottomLines) : 0;
 		}
 	}
 
-	public static class WorkerThread implements Runnable {
+	/**
+	 * Work-stealing task responsible for one directory. It lists the directory, groups its files into
+	 * batches of {@link #FILE_BATCH_SIZE} and forks one subtask per batch and per subdirectory, so idle
+	 * threads steal work from big folders instead of waiting for them.
+	 */
+	public static class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
 		private final IndexWriter indexWriter;
 		private final IndexFiles indexFiles;
+		private final IndexingPipeline pipeline;
 		private final Path folder;
 		private final int deep;
 
-		public WorkerThread(IndexWriter indexWriter, IndexFiles indexFiles, Path folder, int deep) {
+		/**
+		 * @param indexWriter Writer that receives the documents of this folder
+		 * @param indexFiles  Indexer shared by all the tasks
+		 * @param pipeline    Pipeline where the files are submitted
+		 * @param folder      Folder to index
+		 * @param deep        Number of levels below the folder that will be visited (1 means only its files)
+		 */
+		public DirectoryTask(IndexWriter indexWriter, IndexFiles indexFiles, IndexingPipeline pipeline, Path folder, int deep) {
 			this.indexWriter = indexWriter;
 			this.indexFiles = indexFiles;
+			this.pipeline = pipeline;
 			this.folder = folder;
 			this.deep = deep;
 		}
 
 		@Override
-		public void run() {
-			try{
-				System.out.println(String.format("I am the thread '%s' and I am responsible for folder '%s'",
-						Thread.currentThread().getName(), folder));
-				indexFiles.indexDocs(indexWriter, folder, deep);
+		protected void compute() {
+			if (deep < 1) {
+				return;
+			}
+			List<RecursiveAction> subtasks = new ArrayList<>();
+			List<Path> batch = new ArrayList<>(FILE_BATCH_SIZE);
+
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(folder)) {
+				for (final Path path : directoryStream) {
+					if (Files.isDirectory(path)) {
+						// Subfolders are only visited while we have not reached the maximum depth
+						if (deep > 1 && indexFiles.firstVisit(path)) {
+							subtasks.add(new DirectoryTask(indexWriter, indexFiles, pipeline, path, deep - 1));
+						}
+					} else if (indexFiles.acceptFile(path)) {
+						batch.add(path);
+						if (batch.size() == FILE_BATCH_SIZE) {
+							subtasks.add(new FileBatchTask(indexWriter, pipeline, batch));
+							batch = new ArrayList<>(FILE_BATCH_SIZE);
+						}
+					}
+				}
 			} catch (IOException e) {
-				e.printStackTrace();
+				// don't index folders that can't be read.
+				e.printStackTrace(System.err);
+			}
+
+			if (!batch.isEmpty()) {
+				subtasks.add(new FileBatchTask(indexWriter, pipeline, batch));
+			}
+			invokeAll(subtasks);
+		}
+	}
+
+	/**
+	 * Work-stealing task that submits a small batch of files of the same folder to the pipeline.
+	 * It waits while the pipeline is full.
+	 */
+	public static class FileBatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final IndexWriter indexWriter;
+		private final IndexingPipeline pipeline;
+		private final List<Path> files;
+
+		public FileBatchTask(IndexWriter indexWriter, IndexingPipeline pipeline, List<Path> files) {
+			this.indexWriter = indexWriter;
+			this.pipeline = pipeline;
+			this.files = files;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				for (Path file : files) {
+					pipeline.submit(indexWriter, file);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationException("interrupted while submitting files");
 			}
 		}
 	}
@@ -105,10 +259,31 @@ public class IndexFiles implements AutoCloseable {
 	/** Index all text files under a directory. */
 	public static void main(String[] args) throws Exception {
 		String usage = "java org.apache.lucene.IndexFiles"
-				+ " [-index INDEX_PATH] [-docs DOCS_PATH] [-update] [-knn_dict DICT_PATH]\n\n"
+				+ " [-index INDEX_PATH] [-docs DOCS_PATH] [-update] [-knn_dict DICT_PATH]"
+				+ " [-numThreads N] [-deep D] [-partialIndexes] [-readerThreads R] [-queueSize Q] [-incremental] [-cleanPartialIndexes]"
+				+ " [-ioThreads T] [-dedup] [-watch [-watchQuiet MILLIS] [-refreshMillis MILLIS]] [-embeddingBatch B] [-embeddingCache C] [-verbose] [-progressInterval SECONDS] [-commitEvery DOCS] [-commitInterval SECONDS] [-timeout SECONDS] [-resume]\n\n"
 				+ "This indexes the documents in DOCS_PATH, creating a Lucene index"
 				+ "in INDEX_PATH that can be searched with SearchFiles\n"
-				+ "IF DICT_PATH contains a KnnVector dictionary, the index will also support KnnVector search";
+				+ "IF DICT_PATH contains a KnnVector dictionary, the index will also support KnnVector search\n"
+				+ "Embeddings are computed by N threads in batches of B documents (32 by default), and with -embeddingCache"
+				+ " the vectors of the last C documents are reused for files with the same contents.\n"
+				+ "N threads share the folders and files of DOCS_PATH, walking at most D levels under each subfolder.\n"
+				+ "R threads read the files, and N threads build and write the documents, with queues of Q files between them.\n"
+				+ "With -ioThreads up to T files are read at the same time on virtual threads (Java 21) or light threads"
+				+ " (at most 64), instead of by the R readers. Use it when the files are on high-latency storage like NFS.\n"
+				+ "With -incremental only new and changed files are indexed, and files that no longer exist are deleted.\n"
+				+ "With -dedup a file with the same contents as another one found before is indexed without its contents,"
+				+ " with the path of the first one in the field 'duplicateOf'. It needs a full crawl, not -incremental or -resume.\n"
+				+ "The hash of the contents, in the field 'contentsHash', is only computed with -incremental, -dedup or"
+				+ " -embeddingCache.\n"
+				+ "With -watch, after the crawl the docs folder is watched: changed files are indexed once they have been"
+				+ " quiet for MILLIS (500), and the queries typed in the console search the index as it changes.\n"
+				+ "With -partialIndexes each subfolder is indexed in INDEX_PATH/index_SUBFOLDER and then merged;"
+				+ " -cleanPartialIndexes deletes those folders after the merge.\n"
+				+ "Progress is printed every SECONDS (10 by default); with -verbose every file indexed is also printed.\n"
+				+ "The documents indexed are committed every DOCS documents and/or every SECONDS seconds, and the crawl stops"
+				+ " after -timeout SECONDS. A crawl that stopped or failed is continued from its last commit with -resume\n"
+				+ WriterTuning.usage();
 		String indexPath = "index";
 		String docsPath = null;
 		String vectorDictSource = null;
@@ -118,9 +293,34 @@ public class IndexFiles implements AutoCloseable {
 		int numThreads = Runtime.getRuntime().availableProcessors();
 		//deep is initially the maximum integer number, so we do not have any problems with the maximum depth
 		int deep = Integer.MAX_VALUE;
+		//Threads that read the files and size of the queues between the stages of the pipeline
+		int readerThreads = -1;
+		int queueSize = -1;
+		//Reads in flight of the I/O mode, 0 to use the reader threads
+		int ioThreads = 0;
+		//Documents per batch of embeddings and vectors cached by contents hash
+		int embeddingBatch = 32;
+		int embeddingCache = 0;
+		//Copies of the same contents are indexed as documents that point to the first one
+		boolean dedup = false;
+		//Keeps indexing the changes of the docs folder after the crawl
+		boolean watch = false;
+		long watchQuiet = 500;
+		long refreshMillis = 1000;
 
 
 		boolean partialIndexes = false;
+		boolean cleanPartialIndexes = false;
+		boolean incrementalMode = false;
+		boolean verbose = false;
+		int progressInterval = 10;
+		//Intermediate commits, maximum time of the crawl and resume of an interrupted crawl
+		long commitEvery = 0;
+		int commitInterval = 0;
+		long timeout = 0;
+		boolean resume = false;
+		//RAM buffer, merges and compound files of the writers
+		WriterTuning tuning = new WriterTuning();
 
 		for (int i = 0; i < args.length; i++) {
 			switch (args[i]) {
@@ -164,8 +364,63 @@ public class IndexFiles implements AutoCloseable {
 				case "-partialIndexes":
 					partialIndexes = true;
 					break;
+				case "-cleanPartialIndexes":
+					cleanPartialIndexes = true;
+					break;
+				case "-readerThreads":
+					readerThreads = Integer.parseInt(args[++i]);
+					break;
+				case "-queueSize":
+					queueSize = Integer.parseInt(args[++i]);
+					break;
+				case "-ioThreads":
+					ioThreads = Integer.parseInt(args[++i]);
+					break;
+				case "-embeddingBatch":
+					embeddingBatch = Integer.parseInt(args[++i]);
+					break;
+				case "-embeddingCache":
+					embeddingCache = Integer.parseInt(args[++i]);
+					break;
+				case "-dedup":
+					dedup = true;
+					break;
+				case "-watch":
+					watch = true;
+					break;
+				case "-watchQuiet":
+					watchQuiet = Long.parseLong(args[++i]);
+					break;
+				case "-refreshMillis":
+					refreshMillis = Long.parseLong(args[++i]);
+					break;
+				case "-incremental":
+					incrementalMode = true;
+					break;
+				case "-verbose":
+					verbose = true;
+					break;
+				case "-progressInterval":
+					progressInterval = Integer.parseInt(args[++i]);
+					break;
+				case "-commitEvery":
+					commitEvery = Long.parseLong(args[++i]);
+					break;
+				case "-commitInterval":
+					commitInterval = Integer.parseInt(args[++i]);
+					break;
+				case "-timeout":
+					timeout = Long.parseLong(args[++i]);
+					break;
+				case "-resume":
+					resume = true;
+					break;
 				default:
-					throw new IllegalArgumentException("unknown parameter " + args[i]);
+					int last = tuning.parse(args, i);
+					if (last < 0) {
+						throw new IllegalArgumentException("unknown parameter " + args[i]);
+					}
+					i = last;
 			}
 		}
 
@@ -175,6 +430,33 @@ public class IndexFiles implements AutoCloseable {
 			System.exit(1);
 		}
 
+		// The incremental mode updates the existing index in place
+		if ((incrementalMode || resume) && partialIndexes) {
+			System.err.println("-incremental and -resume can't be used with -partialIndexes");
+			System.exit(1);
+		}
+		if (incrementalMode) {
+			create = false;
+			append = false;
+		}
+		// Copies indexed before, or of files that are skipped, would keep pointing to files that changed
+		if ((incrementalMode || resume) && dedup) {
+			System.err.println("-incremental and -resume can't be used with -dedup");
+			System.exit(1);
+		}
+		// Copies would keep pointing to files deleted later, and partial indexes are only merged at the end
+		if (watch && (dedup || partialIndexes)) {
+			System.err.println("-watch can't be used with -dedup or -partialIndexes");
+			System.exit(1);
+		}
+
+		if (readerThreads < 1) {
+			readerThreads = numThreads;
+		}
+		if (queueSize < 1) {
+			queueSize = 4 * numThreads;
+		}
+
 		final Path docDir = Paths.get(docsPath);
 		if (!Files.isReadable(docDir)) {
 			System.out.println("Document directory '" + docDir.toAbsolutePath()
@@ -187,6 +469,21 @@ public class IndexFiles implements AutoCloseable {
 			System.out.println("Indexing to directory '" + indexPath + "'...");
 
 			Directory dir = FSDirectory.open(Paths.get(indexPath));
+
+			// A crawl is resumed as an incremental one: the files committed before it stopped are skipped
+			if (resume) {
+				if (!IndexingJob.isResumable(dir, docDir)) {
+					System.out.println("There is no unfinished crawl of '" + docDir + "' in '" + indexPath + "' to resume");
+					dir.close();
+					return;
+				}
+				System.out.println("Resuming the crawl from "
+						+ IndexingJob.lastCrawl(dir).get(IndexingJob.CRAWL_DOCS_INDEXED) + " documents");
+				incrementalMode = true;
+				create = false;
+				append = false;
+			}
+
 			Analyzer analyzer = new StandardAnalyzer();
 			IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
 
@@ -207,12 +504,11 @@ public class IndexFiles implements AutoCloseable {
 
 
 
-			// Optional: for better indexing performance, if you
-			// are indexing many documents, increase the RAM
-			// buffer. But if you do this, increase the max heap
-			// size to the JVM (eg add -Xmx512m or -Xmx1g):
-			//
-			// iwc.setRAMBufferSizeMB(256.0);
+			// For better indexing performance, if you are indexing
+			// many documents, increase the RAM buffer with -ramBufferMB.
+			// But if you do this, increase the max heap size to the
+			// JVM (eg add -Xmx512m or -Xmx1g)
+			tuning.apply(iwc);
 
 			KnnVectorDict vectorDictInstance = null;
 			long vectorDictSize = 0;
@@ -223,94 +519,190 @@ public class IndexFiles implements AutoCloseable {
 			}
 
 
-			//Creates a pool of n threads
-			final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+			//Creates a work-stealing pool of n threads
+			final ForkJoinPool pool = new ForkJoinPool(numThreads);
 
+			// Indexes built by older versions have fields of other types that can't be mixed with the new ones
+			String changedField = iwc.getOpenMode() != OpenMode.CREATE ? changedField(dir) : null;
+			if (changedField != null) {
+				System.err.println("The index in '" + indexPath + "' was built by an older version and its field \""
+						+ changedField + "\" has another type, it can't be updated: rebuild it with -create");
+				dir.close();
+				System.exit(1);
+			}
+			// The state is read before the writer changes the index
+			IncrementalState incremental = incrementalMode ? new IncrementalState(dir) : null;
 			IndexWriter writer = new IndexWriter(dir, iwc);
+			IndexingProgress progress = new IndexingProgress(verbose, progressInterval);
 
 			List<IndexWriter> indexWriterList = new ArrayList<>();
-			Runnable worker;
+			List<RecursiveAction> tasks = new ArrayList<>();
+			List<Path> rootFiles = new ArrayList<>();
+
+			// A signal like Ctrl-C stops the crawl and commits what has been indexed, so it can be resumed
+			IndexingJob job = new IndexingJob(writer, indexWriterList, progress, docDir, commitEvery, commitInterval);
+			CountDownLatch committed = new CountDownLatch(1);
+			AtomicReference<LiveIndexer> liveIndexer = new AtomicReference<>();
+			Thread cancelHook = new Thread(() -> {
+				job.cancel();
+				LiveIndexer live = liveIndexer.get();
+				if (live != null) {
+					live.stop();
+				}
+				try {
+					committed.await(1, TimeUnit.MINUTES);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, "cancel");
+			Runtime.getRuntime().addShutdownHook(cancelHook);
+			// A failure of any kind must not leave the hook waiting for the commit
+			try {
+				boolean finished = false;
 
-			try (IndexFiles indexFiles = new IndexFiles(vectorDictInstance);
-				 DirectoryStream<Path> directoryStream = Files.newDirectoryStream(docDir)) {
+				try (IndexFiles indexFiles = new IndexFiles(vectorDictInstance, embeddingCache, incremental, progress, dedup);
+					 DirectoryStream<Path> directoryStream = Files.newDirectoryStream(docDir)) {
 
-				for (final Path path : directoryStream) {
-					if (Files.isDirectory(path)) {
+					IndexingPipeline pipeline = new IndexingPipeline(indexFiles, readerThreads, ioThreads, numThreads, queueSize,
+							embeddingBatch);
 
-						if(partialIndexes){
-							Directory partialDirectories = FSDirectory.open(Path.of(indexPath + "/index_" + new File(String.valueOf(path)).getName()));
-							IndexWriterConfig indexWriterConfig = new IndexWriterConfig(analyzer);
-
-							if (create) {
-								// Create a new index in the directory, removing any
-								// previously indexed documents:
-								indexWriterConfig.setOpenMode(OpenMode.CREATE);
-							} else if (append){
-								indexWriterConfig.setOpenMode(OpenMode.APPEND);
-							} else {
-								// Add new documents to an existing index:
-								indexWriterConfig.setOpenMode(OpenMode.CREATE_OR_APPEND);
+					for (final Path path : directoryStream) {
+						if (Files.isDirectory(path)) {
+							if (!indexFiles.firstVisit(path)) {
+								continue;
 							}
 
-							IndexWriter indexWriterPartial = new IndexWriter(partialDirectories, indexWriterConfig);
-							indexWriterList.add(indexWriterPartial);
+							if(partialIndexes){
+								Directory partialDirectories = FSDirectory.open(Path.of(indexPath + "/index_" + new File(String.valueOf(path)).getName()));
+								IndexWriterConfig indexWriterConfig = new IndexWriterConfig(analyzer);
+
+								if (create) {
+									// Create a new index in the directory, removing any
+									// previously indexed documents:
+									indexWriterConfig.setOpenMode(OpenMode.CREATE);
+								} else if (append){
+									indexWriterConfig.setOpenMode(OpenMode.APPEND);
+								} else {
+									// Add new documents to an existing index:
+									indexWriterConfig.setOpenMode(OpenMode.CREATE_OR_APPEND);
+								}
 
-							worker = new WorkerThread(indexWriterPartial, indexFiles, path, deep);
-						}
-						else{
-							worker = new WorkerThread(writer, indexFiles, path, deep);
+								IndexWriter indexWriterPartial = new IndexWriter(partialDirectories, tuning.apply(indexWriterConfig));
+								indexWriterList.add(indexWriterPartial);
 
+								tasks.add(new DirectoryTask(indexWriterPartial, indexFiles, pipeline, path, deep));
+							}
+							else{
+								tasks.add(new DirectoryTask(writer, indexFiles, pipeline, path, deep));
+							}
+						} else if (indexFiles.acceptFile(path)) {
+							// Files directly under the docs folder go to the main index
+							rootFiles.add(path);
 						}
-						/* We process each subfolder in a new thread. */
+					}
 
-						/*
-						 * Send the thread to the ThreadPool. It will be processed eventually.
-						 */
-						executor.execute(worker);
+					for (int i = 0; i < rootFiles.size(); i += FILE_BATCH_SIZE) {
+						tasks.add(new FileBatchTask(writer, pipeline,
+								rootFiles.subList(i, Math.min(i + FILE_BATCH_SIZE, rootFiles.size()))));
 					}
-				}
 
-				// NOTE: if you want to maximize search performance,
-				// you can optionally call forceMerge here. This can be
-				// a terribly costly operation, so generally it's only
-				// worth it when your index is relatively static (ie
-				// you're done adding documents to it):
-				//
-				// writer.forceMerge(1);
-			} catch (final IOException e) {
-				e.printStackTrace();
-				System.exit(-1);
-			} finally {
-				IOUtils.close(vectorDictInstance);
-			}
+					/*
+					 * Every folder and batch of files is a task of the pool. Big folders are split into
+					 * smaller tasks, so the threads that finish early steal the pending ones.
+					 * The files found are read, built and written by the stages of the pipeline.
+					 */
+					progress.setStatus(pipeline::queueStatus);
+					try {
+						finished = job.run(pool, pipeline, tasks, timeout);
+					} finally {
+						progress.stop();
+					}
 
-			/*
-			 * Close the ThreadPool; no more jobs will be accepted, but all the previously
-			 * submitted jobs will be processed.
-			 */
-			executor.shutdown();
+					if (finished && incremental != null) {
+						// Every file of the docs folder has been visited, the rest of the documents are removed
+						incremental.deleteMissing(writer);
+						System.out.println("Incremental crawl: " + incremental.summary());
+					}
+					if (dedup) {
+						System.out.println("Copies of other files: " + indexFiles.duplicates.sum());
+					}
 
-			/* Wait up to 1 hour to finish all the previously submitted jobs */
-			try {
-				executor.awaitTermination(1, TimeUnit.HOURS);
-			} catch (final InterruptedException e) {
-				e.printStackTrace();
-				System.exit(-2);
-			}
+					if (finished && watch && !job.isCancelled()) {
+						// The crawl is committed, and from now on only the files that change are indexed
+						job.commit(true);
+						LiveIndexer live = new LiveIndexer(writer, indexFiles, new IndexingPipeline(indexFiles, readerThreads,
+								ioThreads, numThreads, queueSize, embeddingBatch), job, docDir, deep, watchQuiet, refreshMillis,
+								commitInterval > 0 ? commitInterval : 60);
+						liveIndexer.set(live);
+						// A signal that came before the indexer was set has already cancelled the job
+						if (!job.isCancelled()) {
+							live.run();
+						}
+					}
+				} catch (final IOException e) {
+					// What has been indexed before the failure is kept, so the crawl can be resumed
+					e.printStackTrace();
+					job.commit(false);
+					IOUtils.close(indexWriterList);
+					writer.close();
+					committed.countDown();
+					System.exit(-1);
+				} finally {
+					IOUtils.close(vectorDictInstance, incremental);
+					pool.shutdown();
+				}
 
+				if (!finished) {
+					// Partial indexes are not merged until their crawl has finished
+					job.commit(false);
+					IOUtils.close(indexWriterList);
+					writer.close();
+					System.out.println("The crawl has not finished, " + progress.getDocs()
+							+ " documents have been committed. Run it again with -resume to continue");
+					// After this the JVM may stop if the crawl was cancelled by a signal
+					committed.countDown();
+					if (!job.isCancelled()) {
+						System.exit(1);
+					}
+					return;
+				}
 
-			System.out.println("Finished all threads");
-			for(IndexWriter indexWriter : indexWriterList){
-				indexWriter.commit();
-				indexWriter.close();
-			}
+				System.out.println("Finished all threads");
+				if (!indexWriterList.isEmpty()) {
+					// Partial writers flush and commit their last segments in parallel
+					indexWriterList.parallelStream().forEach(indexWriter -> {
+						try {
+							indexWriter.close();
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
 
-			for(IndexWriter indexWriter: indexWriterList){
-				writer.addIndexes(indexWriter.getDirectory());
+					// All the partial indexes are added with a single call, so the main index
+					// is locked and its segments checked only once
+					writer.addIndexes(indexWriterList.stream().map(IndexWriter::getDirectory).toArray(Directory[]::new));
+				}
+
+				// NOTE: if you want to maximize search performance,
+				// you can optionally call forceMerge with -forceMerge 1.
+				// This can be a terribly costly operation, so generally
+				// it's only worth it when your index is relatively static
+				tuning.forceMerge(writer);
+				job.commit(true);
+				writer.close();
+			} finally {
+				committed.countDown();
 			}
 
-			writer.commit();
-			writer.close();
+			if (cleanPartialIndexes) {
+				// The segments have been copied to the main index, so the partial ones are not needed
+				for (IndexWriter indexWriter : indexWriterList) {
+					FSDirectory partialDirectory = (FSDirectory) indexWriter.getDirectory();
+					Path partialPath = partialDirectory.getDirectory();
+					partialDirectory.close();
+					IOUtils.rm(partialPath);
+				}
+			}
 
 
 
@@ -318,6 +710,7 @@ public class IndexFiles implements AutoCloseable {
 			try (IndexReader reader = DirectoryReader.open(dir)) {
 				System.out.println("Indexed " + reader.numDocs() + " documents in " + (end.getTime() - start.getTime())
 						+ " milliseconds");
+				System.out.println("Segments: " + reader.leaves().size() + ", " + tuning.report());
 			}
 		} catch (IOException e) {
 			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
@@ -325,274 +718,745 @@ public class IndexFiles implements AutoCloseable {
 	}
 
 	/**
-	 * Indexes the given file using the given writer, or if a directory is given,
-	 * recurses over files and directories found under the given directory.
+	 * Decides if a file must be indexed taking into account the property 'onlyFiles'.
 	 *
-	 * <p>
-	 * NOTE: This method indexes one document per input file. This is slow. For good
-	 * throughput, put multiple documents into your input file(s). An example of
-	 * this is in the benchmark module, which can create "line doc" files, one
-	 * document per line, using the <a href=
-	 * "../../../../../contrib-benchmark/org/apache/lucene/benchmark/byTask/tasks/WriteLineDocTask.html"
-	 * >WriteLineDocTask</a>.
-	 *
-	 * @param writer Writer to the index where the given file/dir info will be
-	 *               stored
-	 * @param path   The file to index, or the directory to recurse into to find
-	 *               files to indt
-	 * @throws IOException If there is a low-level I/O error
+	 * @param file File found while walking the docs folder
+	 * @return true if the file has one of the extensions of 'onlyFiles', or if that property does not exist
 	 */
-	void indexDocs(final IndexWriter writer, Path path, int deep) throws IOException {
-		if (Files.isDirectory(path)) {
-			Files.walkFileTree(path, EnumSet.of(FileVisitOption.FOLLOW_LINKS), deep, new SimpleFileVisitor<Path>() {
-				@Override
-				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-
-					//Finds out if there is a property 'onlyfiles'. If that occurs it creates a vector of strings with the types of field. Ex ['.c','.txt','.java']
-					if(properties.getProperty("onlyFiles") != null){
-						String[] var_onlyFiles = properties.getProperty("onlyFiles").split(" ");
-
-						//Iterates the strings' vector, and we compare if the file finishes in that extension.
-						//If it occurs the file is indexed, and in the other case we don't index it.
-						for(String type : var_onlyFiles){
-							if (file.toString().endsWith(type)){
-								try {
-									indexDoc(writer, file, attrs.lastModifiedTime().toMillis());
-								} catch (@SuppressWarnings("unused") IOException ignore) {
-									ignore.printStackTrace(System.err);
-									// don't index files that can't be read.
-								}
-							}
-
-						}
-					}
-					//If there is not, it will index all the files which are not directories
-					else {
-
-						try {
-							if(!Files.isDirectory(file)){
-								indexDoc(writer, file, attrs.lastModifiedTime().toMillis());
-							}
-						} catch (@SuppressWarnings("unused") IOException ignore) {
-							ignore.printStackTrace(System.err);
-							// don't index files that can't be read.
-						}
-					}
-					return FileVisitResult.CONTINUE;
-				}
+	boolean acceptFile(Path file) {
+		//If there is not a property 'onlyFiles', it will index all the files
+		if(settings.onlyFiles == null){
+			return true;
+		}
 
+		//With simple extensions like ['.c','.txt','.java'] we look for the extension of the file in the set
+		String name = file.getFileName().toString();
+		if(settings.onlyExtensions){
+			int dot = name.lastIndexOf('.');
+			return dot >= 0 && settings.onlyFiles.contains(name.substring(dot));
+		}
 
-			});
-		} else {
-			indexDoc(writer, path, Files.getLastModifiedTime(path).toMillis());
+		//In other case we compare if the file finishes in any of the types
+		for(String type : settings.onlyFiles){
+			if (name.endsWith(type)){
+				return true;
+			}
 		}
+		return false;
 	}
 
-	/** Indexes a single document */
-	void indexDoc(IndexWriter writer, Path file, long lastModified) throws IOException {
-		try (InputStream stream = Files.newInputStream(file)) {
-			// make a new, empty document
-			Document doc = new Document();
+	/**
+	 * Registers a folder as visited. As we follow symbolic links, the same folder can be reached
+	 * more than once (or even in a loop), so we only walk it the first time.
+	 *
+	 * @param folder Folder that is going to be walked
+	 * @return true if the folder had not been visited before
+	 */
+	boolean firstVisit(Path folder) {
+		try {
+			return visitedFolders.add(folder.toRealPath());
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+			return false;
+		}
+	}
 
-			// Add the path of the file as a field named "path". Use a
-			// field that is indexed (i.e. searchable), but don't tokenize
-			// the field into separate words and don't index term frequency
-			// or positional information:
-			Field pathField = new StringField("path", file.toString(), Field.Store.YES);
-			doc.add(pathField);
+	/**
+	 * Contents and attributes of a file, read by the I/O stage of the pipeline.
+	 */
+	static final class SourceFile {
+		final IndexWriter writer;
+		final Path file;
+		final BasicFileAttributes attributes;
+		final String contentsStored;
+		// Hash of the contents, null if it is not computed
+		final String contentsHash;
+		// Whole contents of the file, null if it was too big and it was read as a stream
+		final ByteBuffer contents;
+		// Path of the first file found with the same contents, null if this is the first one
+		final String duplicateOf;
+
+		SourceFile(IndexWriter writer, Path file, BasicFileAttributes attributes, String contentsStored, String contentsHash,
+				   ByteBuffer contents, String duplicateOf) {
+			this.writer = writer;
+			this.file = file;
+			this.attributes = attributes;
+			this.contentsStored = contentsStored;
+			this.contentsHash = contentsHash;
+			this.contents = contents;
+			this.duplicateOf = duplicateOf;
+		}
+	}
 
-			// Allow to store basic file attributes.
-			BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+	/**
+	 * Reads a file: its basic attributes, the lines that are going to be stored and, in the modes that use
+	 * it, the hash of its contents.
+	 * This is the blocking I/O part of the indexing of a document. The file is read only once, into a
+	 * buffer that is also used later to compute its embedding.
+	 *
+	 * <p>
+	 * In incremental mode, files whose last modified time or contents hash have not changed since
+	 * they were indexed are skipped. In dedup mode, a file with the same contents hash as a file
+	 * already found in this crawl is marked as its copy, and its lines are not kept.
+	 *
+	 * @param writer Writer that will receive the document
+	 * @param file   File to read
+	 * @return The file contents ready to be turned into a document, or null if it does not need to be indexed
+	 * @throws IOException If the file can't be read
+	 */
+	SourceFile readSource(IndexWriter writer, Path file) throws IOException {
+		IncrementalState.IndexedFile indexed = null;
+		// The state of the index before the crawl is not valid any more in watch mode. The file is
+		// registered as found before it is read, so a failed read doesn't delete its document.
+		if (incremental != null && !live) {
+			indexed = incremental.find(file);
+		}
 
-			// Add the last modified date of the file a field named "modified".
-			// Use a LongPoint that is indexed (i.e. efficiently filterable with
-			// PointRangeQuery). This indexes to milli-second resolution, which
-			// is often too fine. You could instead create a number based on
-			// year/month/day/hour/minutes/seconds, down the resolution you require.
-			// For example the long value 2011021714 would mean
-			// February 17, 2011, 2-3 PM.
-			doc.add(new LongPoint("modified", lastModified));
+		// Allow to store basic file attributes.
+		BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
 
+		if (indexed != null && indexed.modified == fileAttributes.lastModifiedTime().toMillis()) {
+			incremental.skipped.incrementAndGet();
+			return null;
+		}
 
+		MessageDigest digest = hashContents ? newContentsDigest() : null;
+		ByteBuffer contents = null;
+		String contentsStored = null;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > STREAM_THRESHOLD) {
+				// Big files are read as a stream, only their stored lines are kept
+				InputStream stream = Channels.newInputStream(channel);
+				if (digest == null) {
+					contentsStored = onlyLines(settings, stream);
+				} else {
+					stream = new DigestInputStream(stream, digest);
+					contentsStored = onlyLines(settings, stream);
+					// The hash covers the whole file, also the lines that are not stored
+					stream.transferTo(OutputStream.nullOutputStream());
+				}
+			} else {
+				contents = readContents(channel, (int) size);
+				if (digest != null) {
+					digest.update(contents.duplicate());
+				}
+			}
+			progress.bytesRead(size);
+		}
+		String contentsHash = digest != null ? toHex(digest.digest()) : null;
+
+		if (incremental != null && !live) {
+			if (indexed == null) {
+				incremental.added.incrementAndGet();
+			} else if (contentsHash.equals(incremental.storedHash(indexed))) {
+				// Only the last modified time has changed
+				incremental.skipped.incrementAndGet();
+				return null;
+			} else {
+				incremental.updated.incrementAndGet();
+			}
+		}
 
+		String duplicateOf = null;
+		if (canonicalPaths != null) {
+			String canonical = canonicalPaths.putIfAbsent(contentsHash, file.toString());
+			if (canonical != null && !canonical.equals(file.toString())) {
+				duplicateOf = canonical;
+				duplicates.increment();
+				// Copies don't need their contents any more
+				return new SourceFile(writer, file, fileAttributes, null, contentsHash, null, duplicateOf);
+			}
+		}
 
+		if (contentsStored == null) {
 			// Stores the contents that it is necessary, taking into account the value of onlyTopLines and onlyBottomLines
-			String contentsStored = onlyLines(stream);
-
-			// Add the contents of the file to a field named "contents". Specify a Reader,
-			// so that the text of the file is tokenized and indexed, but not stored.
-			// Note that FileReader expects the file to be in UTF-8 encoding.
-			// If that's not the case searching for special characters will fail.
-			doc.add(new TextField("contents",
-					new BufferedReader(new InputStreamReader(new ByteArrayInputStream(contentsStored.getBytes()), StandardCharsets.UTF_8))));
-
-
+			contentsStored = onlyLines(settings, contents);
+		}
+		return new SourceFile(writer, file, fileAttributes, contentsStored, contentsHash, contents, null);
+	}
 
+	/**
+	 * Reads the whole contents of a file into the heap. Files are not mapped in memory: mappings are only
+	 * released by the GC, and a mapped file truncated while it is read stops the JVM instead of failing
+	 * its own read.
+	 *
+	 * @param channel Channel of the file
+	 * @param size    Size of the file in bytes, at most {@link #STREAM_THRESHOLD}
+	 * @return Buffer with the contents of the file. It may be shorter if the file was truncated
+	 * @throws IOException If the file can't be read
+	 */
+	private static ByteBuffer readContents(FileChannel channel, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			// keep reading until the buffer is full or the file ends
+		}
+		buffer.flip();
+		return buffer;
+	}
 
-			final FieldType fieldType = new FieldType(TextField.TYPE_STORED);
-			fieldType.setStored(true);
-			fieldType.setStoreTermVectors(true);
+	/**
+	 * Input stream over the contents of a buffer, without copying them.
+	 */
+	static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
 
-			//Add the contents of the file to a field named "contentsStored".
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
 
-			doc.add(new StoredField("contentsStored", contentsStored, fieldType));
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
 
-			//Add the host's identification in charged of indexing the file to a field named "hostname".
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
 
-			doc.add(new TextField("hostname", InetAddress.getLocalHost().getHostName(), Field.Store.NO));
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
 
-			//Add the thread's identification in charged of indexing the file to a field named "thread".
+	/**
+	 * @return Digest used to compute the hash of the contents of the files
+	 */
+	static MessageDigest newContentsDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
 
-			doc.add(new TextField("thread", Thread.currentThread().getName(), Field.Store.NO));
+	/**
+	 * @param bytes Bytes of a hash
+	 * @return The hash in hexadecimal format
+	 */
+	static String toHex(byte[] bytes) {
+		char[] digits = "0123456789abcdef".toCharArray();
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = digits[(bytes[i] >> 4) & 0xF];
+			hex[2 * i + 1] = digits[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
 
-			//Add the file's type to a field named "type".
+	/**
+	 * Finds a field of an existing index that was indexed with a different schema than the one of the
+	 * documents built now. Lucene doesn't allow changing the schema of a field, so an index built before
+	 * the attributes had points and doc values can't be updated and must be built again.
+	 *
+	 * @param dir Directory of the index. It may not contain an index yet
+	 * @return The name of the first field with a different schema, or null if the index can be updated
+	 * @throws IOException If the index can't be read
+	 */
+	static String changedField(Directory dir) throws IOException {
+		if (!DirectoryReader.indexExists(dir)) {
+			return null;
+		}
+		// The schema of each field joins the types of all the fields with its name
+		Map<String, FieldType> schema = new LinkedHashMap<>();
+		DocumentTemplate template = new DocumentTemplate("", 0, true);
+		for (Document doc : new Document[] { template.doc, template.duplicateDoc }) {
+			for (IndexableField field : doc) {
+				IndexableFieldType type = field.fieldType();
+				FieldType joined = schema.computeIfAbsent(field.name(), name -> new FieldType());
+				if (type.indexOptions() != IndexOptions.NONE) {
+					joined.setIndexOptions(type.indexOptions());
+					joined.setStoreTermVectors(type.storeTermVectors());
+				}
+				if (type.docValuesType() != DocValuesType.NONE) {
+					joined.setDocValuesType(type.docValuesType());
+				}
+				if (type.pointDimensionCount() > 0) {
+					joined.setDimensions(type.pointDimensionCount(), type.pointNumBytes());
+				}
+			}
+		}
+		try (DirectoryReader reader = DirectoryReader.open(dir)) {
+			FieldInfos fieldInfos = FieldInfos.getMergedFieldInfos(reader);
+			for (Map.Entry<String, FieldType> entry : schema.entrySet()) {
+				FieldInfo info = fieldInfos.fieldInfo(entry.getKey());
+				FieldType type = entry.getValue();
+				if (info != null && (info.getIndexOptions() != type.indexOptions()
+						|| info.getDocValuesType() != type.docValuesType()
+						|| info.getPointDimensionCount() != type.pointDimensionCount()
+						|| info.hasVectors() != type.storeTermVectors())) {
+					return entry.getKey();
+				}
+			}
+		}
+		return null;
+	}
 
-			doc.add(new TextField("type", getType(fileAttributes), Field.Store.NO));
+	// Type of "contentsStored", created once and frozen so that every document shares it
+	private static final FieldType CONTENTS_STORED_TYPE = new FieldType(TextField.TYPE_STORED);
+	static {
+		CONTENTS_STORED_TYPE.setStored(true);
+		CONTENTS_STORED_TYPE.setStoreTermVectors(true);
+		CONTENTS_STORED_TYPE.freeze();
+	}
 
-			//Add the file's size in KiloBytes to a field named "sizeKB".
+	/**
+	 * Document with all the fields of a file, created once and reused for many files: for each file
+	 * we only change the values of its fields. This way indexing many small files does not create
+	 * a new document and its fields for every one of them.
+	 *
+	 * <p>
+	 * A template can only be reused once the IndexWriter has finished with its document.
+	 */
+	static final class DocumentTemplate {
+		final Document doc = new Document();
+		// Document of a copy of a file already indexed: the same fields without the contents
+		final Document duplicateDoc = new Document();
+		// Which of the documents has the values of the last file
+		private boolean duplicate;
+
+		// Add the path of the file as a field named "path". Use a
+		// field that is indexed (i.e. searchable), but don't tokenize
+		// the field into separate words and don't index term frequency
+		// or positional information:
+		private final Field path = new StringField("path", "", Field.Store.YES);
+
+		// Add the last modified date of the file a field named "modified".
+		// Use a LongPoint that is indexed (i.e. efficiently filterable with
+		// PointRangeQuery). This indexes to milli-second resolution, which
+		// is often too fine. You could instead create a number based on
+		// year/month/day/hour/minutes/seconds, down the resolution you require.
+		// For example the long value 2011021714 would mean
+		// February 17, 2011, 2-3 PM.
+		private final Field modified = new LongPoint("modified", 0L);
+		// Its doc value lets the incremental mode compare it without reading the stored fields.
+		private final Field modifiedDocValues = new NumericDocValuesField("modified", 0L);
+
+		// Add the hash of the whole contents of the file to a field named "contentsHash",
+		// null if the hash is not computed.
+		private final Field contentsHash;
+
+		// Add the contents of the file to a field named "contents". The text
+		// is tokenized and indexed, but not stored.
+		// Note that the file is decoded as UTF-8.
+		// If that's not the case searching for special characters will fail.
+		private final Field contents = new TextField("contents", "", Field.Store.NO);
+
+		//Add the contents of the file to a field named "contentsStored".
+		private final Field contentsStored = new StoredField("contentsStored", "", CONTENTS_STORED_TYPE);
+
+		//Add the path of the first file with the same contents to a field named "duplicateOf", only in copies.
+		private final Field duplicateOf = new StringField("duplicateOf", "", Field.Store.YES);
+
+		// The attributes of the file are indexed as keywords or numbers with doc values, so they can be
+		// used to filter, sort and count documents without reading the stored fields (see SearchAttributes).
+
+		//Add the host's identification in charged of indexing the file to a field named "hostname".
+		private final Field hostname;
+		private final Field hostnameDocValues;
+
+		//Add the thread's identification in charged of indexing the file to a field named "thread".
+		private final Field thread = new StringField("thread", "", Field.Store.NO);
+		private final Field threadDocValues = new SortedDocValuesField("thread", new BytesRef());
+
+		//Add the file's type to a field named "type".
+		private final Field type = new StringField("type", "", Field.Store.NO);
+		private final Field typeDocValues = new SortedDocValuesField("type", new BytesRef());
+
+		//Add the file's size in KiloBytes to a field named "sizeKB".
+		private final Field sizeKB = new LongPoint("sizeKB", 0L);
+		private final Field sizeKBDocValues = new NumericDocValuesField("sizeKB", 0L);
+
+		//Add the file's creation, last access and last modified times in milliseconds to fields named
+		//"creationTime", "lastAccessTime" and "lastModifiedTime".
+		private final Field creationTime = new LongPoint("creationTime", 0L);
+		private final Field creationTimeDocValues = new NumericDocValuesField("creationTime", 0L);
+		private final Field lastAccessTime = new LongPoint("lastAccessTime", 0L);
+		private final Field lastAccessTimeDocValues = new NumericDocValuesField("lastAccessTime", 0L);
+		private final Field lastModifiedTime = new LongPoint("lastModifiedTime", 0L);
+		private final Field lastModifiedTimeDocValues = new NumericDocValuesField("lastModifiedTime", 0L);
+
+		//Add the start of the day of the same times in Lucene's format (yyyyMMddHHmmss) as numbers to fields
+		//named "creationTimeLucene", "lastAccessTimeLucene" and "lastModifiedTimeLucene".
+		private final Field creationTimeLucene = new LongPoint("creationTimeLucene", 0L);
+		private final Field creationTimeLuceneDocValues = new NumericDocValuesField("creationTimeLucene", 0L);
+		private final Field lastAccessTimeLucene = new LongPoint("lastAccessTimeLucene", 0L);
+		private final Field lastAccessTimeLuceneDocValues = new NumericDocValuesField("lastAccessTimeLucene", 0L);
+		private final Field lastModifiedTimeLucene = new LongPoint("lastModifiedTimeLucene", 0L);
+		private final Field lastModifiedTimeLuceneDocValues = new NumericDocValuesField("lastModifiedTimeLucene", 0L);
+
+		// Embedding of the file for KnnVector search, null if there is not a dictionary.
+		// The embedding is copied into the array of the field, that belongs to this template only
+		private final float[] vector;
+		private final KnnVectorField contentsVector;
+
+		// Last day converted to Lucene's format. Files indexed together usually have their times in the
+		// same days, so most of the times we don't need to convert it again.
+		private long dayStart = Long.MAX_VALUE;
+		private long dayEnd = Long.MIN_VALUE;
+		private long dayLucene;
+
+		/**
+		 * @param hostname        Name of the host that indexes the files
+		 * @param vectorDimension Dimension of the embeddings, 0 if they are not computed
+		 * @param hashContents    If the documents have the hash of their contents
+		 */
+		DocumentTemplate(String hostname, int vectorDimension, boolean hashContents) {
+			this.contentsHash = hashContents ? new StringField("contentsHash", "", Field.Store.YES) : null;
+			this.hostname = new StringField("hostname", hostname, Field.Store.NO);
+			this.hostnameDocValues = new SortedDocValuesField("hostname", new BytesRef(hostname));
+			this.vector = vectorDimension > 0 ? new float[vectorDimension] : null;
+			this.contentsVector = vectorDimension > 0
+					? new KnnVectorField("contents-vector", vector, VectorSimilarityFunction.DOT_PRODUCT)
+					: null;
+
+			for (Field field : new Field[] { path, modified, modifiedDocValues, contentsHash, contents, contentsStored,
+					this.hostname, hostnameDocValues, thread, threadDocValues, type, typeDocValues, sizeKB, sizeKBDocValues,
+					creationTime, creationTimeDocValues, lastAccessTime, lastAccessTimeDocValues,
+					lastModifiedTime, lastModifiedTimeDocValues, creationTimeLucene, creationTimeLuceneDocValues,
+					lastAccessTimeLucene, lastAccessTimeLuceneDocValues, lastModifiedTimeLucene,
+					lastModifiedTimeLuceneDocValues }) {
+				if (field == null) {
+					continue;
+				}
+				doc.add(field);
+				if (field != contents && field != contentsStored) {
+					duplicateDoc.add(field);
+				}
+			}
+			duplicateDoc.add(duplicateOf);
+			if (contentsVector != null) {
+				doc.add(contentsVector);
+			}
+		}
 
-			doc.add(new LongPoint("sizeKB", getSize(fileAttributes)));
+		/**
+		 * @return The document with the values of the last file built
+		 */
+		Document document() {
+			return duplicate ? duplicateDoc : doc;
+		}
 
-			//Add the file's creation time to a field named "creationTime".
+		/**
+		 * @param fileTime One of the times of the file
+		 * @return The start of its day in Lucene's format, as a number
+		 */
+		private long luceneDay(FileTime fileTime) {
+			long millis = fileTime.toMillis();
+			if (millis < dayStart || millis >= dayEnd) {
+				ZoneId zone = ZoneId.systemDefault();
+				LocalDate day = fileTime.toInstant().atZone(zone).toLocalDate();
+				dayStart = day.atStartOfDay(zone).toInstant().toEpochMilli();
+				dayEnd = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+				dayLucene = Long.parseLong(DateTools.timeToString(dayStart, DateTools.Resolution.SECOND));
+			}
+			return dayLucene;
+		}
+	}
 
-			doc.add(new TextField("creationTime", fileAttributes.creationTime().toString(), Field.Store.NO));
+	/**
+	 * @return A new template for the documents of this indexer
+	 */
+	DocumentTemplate newDocumentTemplate() {
+		return new DocumentTemplate(settings.hostname, embeddings != null ? embeddings.getDimension() : 0, hashContents);
+	}
 
-			//Add the file's last access time to a field named "lastAccessTime".
+	/**
+	 * @return true if the documents have an embedding, computed by {@link #embedDocuments(List, List)}
+	 */
+	boolean hasEmbeddings() {
+		return embeddings != null;
+	}
 
-			doc.add(new TextField("lastAccessTime", fileAttributes.lastAccessTime().toString(), Field.Store.NO));
+	/**
+	 * Builds the document of a file already read, reusing the fields of a template.
+	 *
+	 * @param source   File read by {@link #readSource(IndexWriter, Path)}
+	 * @param template Template that is not in use by any other document
+	 * @return The document of the template, with the values of the file. Its embedding is computed later
+	 */
+	Document buildDocument(SourceFile source, DocumentTemplate template) {
+		Path file = source.file;
+		BasicFileAttributes fileAttributes = source.attributes;
+
+		template.path.setStringValue(file.toString());
+		template.modified.setLongValue(fileAttributes.lastModifiedTime().toMillis());
+		template.modifiedDocValues.setLongValue(fileAttributes.lastModifiedTime().toMillis());
+		if (template.contentsHash != null) {
+			template.contentsHash.setStringValue(source.contentsHash);
+		}
+		template.duplicate = source.duplicateOf != null;
+		if (template.duplicate) {
+			template.duplicateOf.setStringValue(source.duplicateOf);
+		} else {
+			template.contents.setStringValue(source.contentsStored);
+			template.contentsStored.setStringValue(source.contentsStored);
+		}
+		String thread = Thread.currentThread().getName();
+		template.thread.setStringValue(thread);
+		template.threadDocValues.setBytesValue(new BytesRef(thread));
+		String type = getType(fileAttributes);
+		template.type.setStringValue(type);
+		template.typeDocValues.setBytesValue(new BytesRef(type));
+		setLong(template.sizeKB, template.sizeKBDocValues, getSize(fileAttributes));
+		setLong(template.creationTime, template.creationTimeDocValues, fileAttributes.creationTime().toMillis());
+		setLong(template.lastAccessTime, template.lastAccessTimeDocValues, fileAttributes.lastAccessTime().toMillis());
+		setLong(template.lastModifiedTime, template.lastModifiedTimeDocValues, fileAttributes.lastModifiedTime().toMillis());
+		setLong(template.creationTimeLucene, template.creationTimeLuceneDocValues,
+				template.luceneDay(fileAttributes.creationTime()));
+		setLong(template.lastAccessTimeLucene, template.lastAccessTimeLuceneDocValues,
+				template.luceneDay(fileAttributes.lastAccessTime()));
+		setLong(template.lastModifiedTimeLucene, template.lastModifiedTimeLuceneDocValues,
+				template.luceneDay(fileAttributes.lastModifiedTime()));
+
+		return template.document();
+	}
 
-			//Add the file's last modified time to a field named "lastModifiedTime".
+	/**
+	 * Computes the embeddings of a batch of documents already built.
+	 *
+	 * @param sources   Files of the documents
+	 * @param templates Templates of the documents, in the same order
+	 * @return For each document, false if its embedding could not be computed because the file can't be read
+	 * @throws IOException If the dictionary can't be read
+	 */
+	boolean[] embedDocuments(List<SourceFile> sources, List<DocumentTemplate> templates) throws IOException {
+		List<BatchEmbeddings.Text> texts = new ArrayList<>(sources.size());
+		for (int i = 0; i < sources.size(); i++) {
+			SourceFile source = sources.get(i);
+			// The embedding uses the whole file, that is already in memory unless it was too big
+			texts.add(new BatchEmbeddings.Text(source.contents, source.file, source.contentsHash, templates.get(i).vector));
+		}
+		embeddings.embed(texts);
 
-			doc.add(new TextField("lastModifiedTime", fileAttributes.lastModifiedTime().toString(), Field.Store.NO));
+		// The embeddings are copied into the array of each template, that its vector field already holds
+		boolean[] embedded = new boolean[texts.size()];
+		for (int i = 0; i < texts.size(); i++) {
+			embedded[i] = !texts.get(i).failed;
+		}
+		return embedded;
+	}
 
-			//Add the file's creation time to a field named "creationTimeLucene" in Lucene's format.
+	/**
+	 * From now on documents update the previous document of their path, even if the index was created by
+	 * the crawl, and the state of the incremental crawl is not used.
+	 */
+	void updateAlways() {
+		live = true;
+	}
 
-			doc.add(new TextField("creationTimeLucene", DateTools.dateToString(getDateCreationTime(fileAttributes), DateTools.Resolution.SECOND), Field.Store.NO));
+	/**
+	 * Sets the value of a numeric attribute, indexed as a point and as a doc value.
+	 */
+	private static void setLong(Field point, Field docValues, long value) {
+		point.setLongValue(value);
+		docValues.setLongValue(value);
+	}
 
-			//Add the file's last access time to a field named "lastAccessTimeLucene" in Lucene's format.
+	/**
+	 * Sends a document to the index.
+	 *
+	 * @param writer Writer of the index
+	 * @param file   File the document comes from
+	 * @param doc    Document built by {@link #buildDocument(SourceFile, DocumentTemplate)}
+	 * @throws IOException If there is a low-level I/O error
+	 */
+	void writeDocument(IndexWriter writer, Path file, Document doc) throws IOException {
+		if (!live && writer.getConfig().getOpenMode() == OpenMode.CREATE) {
+			// New index, so we just add the document (no old document can be there):
+			progress.documentIndexed("adding", file);
+			writer.addDocument(doc);
+		} else {
+			// Existing index (an old copy of this document may have been indexed) so
+			// we use updateDocument instead to replace the old one matching the exact
+			// path, if present:
+			if (!live) {
+				progress.documentIndexed("updating", file);
+				writer.updateDocument(new Term("path", file.toString()), doc);
+				return;
+			}
+			// A file deleted while its document was built is not indexed again after its delete
+			liveLock.readLock().lock();
+			try {
+				if (Files.exists(file)) {
+					progress.documentIndexed("updating", file);
+					writer.updateDocument(new Term("path", file.toString()), doc);
+				}
+			} finally {
+				liveLock.readLock().unlock();
+			}
+		}
+	}
 
-			doc.add(new TextField("lastAccessTimeLucene", DateTools.dateToString(getDateLastAccessTime(fileAttributes), DateTools.Resolution.SECOND),Field.Store.NO));
+	/**
+	 * Deletes the documents of a path that no longer exists: a file, or every file under a folder.
+	 * It waits for the documents being written, that don't write their file once it doesn't exist.
+	 *
+	 * @param writer Writer of the index
+	 * @param path   Path deleted
+	 * @throws IOException If there is a low-level I/O error
+	 */
+	void deleteDocuments(IndexWriter writer, Path path) throws IOException {
+		liveLock.writeLock().lock();
+		try {
+			writer.deleteDocuments(new Term("path", path.toString()));
+			writer.deleteDocuments(new PrefixQuery(new Term("path", path.toString() + File.separator)));
+		} finally {
+			liveLock.writeLock().unlock();
+		}
+	}
 
-			//Add the file's last modified time to a field named "lastModifiedTimeLucene" in Lucene's format.
+	/**
+	 * Same as {@link #onlyLines(Settings, InputStream)} but over the contents of a file already in memory.
+	 * Lines are found looking for '\n' bytes (it never appears inside a multi-byte UTF-8 character):
+	 * the first lines are searched from the start and the last lines from the end of the buffer, so
+	 * only the lines that are stored are decoded.
+	 *
+	 * @param settings Lines of the files that are stored
+	 * @param contents Whole contents of the file
+	 * @return It returns a string with the content of the field that we are going to index
+	 */
+	static String onlyLines(Settings settings, ByteBuffer contents) {
+		int limit = contents.limit();
+		StringBuilder contentsBuilder = new StringBuilder();
 
-			doc.add(new TextField("lastModifiedTimeLucene", DateTools.dateToString(getDateLastModifiedTime(fileAttributes),DateTools.Resolution.SECOND),Field.Store.NO));
+		// If there is not any property like that, we collect all lines
+		if(settings.allLines){
+			int start = 0;
+			while(start < limit){
+				int end = indexOf(contents, start, limit);
+				if(start > 0){
+					contentsBuilder.append("\n");
+				}
+				appendLine(contentsBuilder, contents, start, end);
+				start = end + 1;
+			}
+			return contentsBuilder.toString();
+		}
 
+		// As it has always been, onlyBottomLines counts the first lines of the file and onlyTopLines the last ones
+		int firstLines = settings.onlyBottomLines;
+		int lastLines = settings.onlyTopLines;
+
+		// The first lines are read from the start of the buffer
+		int start = 0;
+		for(int numLines = 0; numLines < firstLines && start < limit; numLines++){
+			int end = indexOf(contents, start, limit);
+			appendLine(contentsBuilder, contents, start, end);
+			contentsBuilder.append(" ");
+			start = end + 1;
+		}
 
-			if (demoEmbeddings != null) {
-				try (InputStream in = Files.newInputStream(file)) {
-					float[] vector = demoEmbeddings
-							.computeEmbedding(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
-					doc.add(new KnnVectorField("contents-vector", vector, VectorSimilarityFunction.DOT_PRODUCT));
+		// The last lines are searched backwards from the end, without going before the first lines.
+		// The line break at the end of the file does not start a new line
+		if(lastLines > 0 && start < limit){
+			int end = contents.get(limit - 1) == '\n' ? limit - 1 : limit;
+			int bottomStart = start;
+			int numLines = 0;
+			for(int i = end - 1; i >= start; i--){
+				if(contents.get(i) == '\n' && ++numLines == lastLines){
+					bottomStart = i + 1;
+					break;
 				}
 			}
+			while(bottomStart <= end){
+				int lineEnd = indexOf(contents, bottomStart, end);
+				appendLine(contentsBuilder, contents, bottomStart, lineEnd);
+				contentsBuilder.append(" ");
+				bottomStart = lineEnd + 1;
+			}
+		}
 
+		// Converts the StringBuilder to a String
+		return contentsBuilder.toString();
+	}
 
-			if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
-				// New index, so we just add the document (no old document can be there):
-				System.out.println("adding " + file);
-				writer.addDocument(doc);
-			} else {
-				// Existing index (an old copy of this document may have been indexed) so
-				// we use updateDocument instead to replace the old one matching the exact
-				// path, if present:
-				System.out.println("updating " + file);
-				writer.updateDocument(new Term("path", file.toString()), doc);
+	/**
+	 * @return Position of the next '\n' of the buffer from start, or limit if there is not any
+	 */
+	private static int indexOf(ByteBuffer contents, int start, int limit) {
+		for(int i = start; i < limit; i++){
+			if(contents.get(i) == '\n'){
+				return i;
 			}
 		}
+		return limit;
+	}
+
+	/**
+	 * Decodes one line of the buffer, without its line break, and appends it.
+	 */
+	private static void appendLine(StringBuilder contentsBuilder, ByteBuffer contents, int start, int end) {
+		if(end > start && contents.get(end - 1) == '\r'){
+			end--;
+		}
+		ByteBuffer line = contents.duplicate();
+		line.limit(end).position(start);
+		contentsBuilder.append(StandardCharsets.UTF_8.decode(line));
 	}
 
 	/**
+	 * Reads the lines of the file that are going to be stored: the first onlyBottomLines lines and the
+	 * last onlyTopLines lines, or each line once if they overlap. The file is read as a stream, we only
+	 * keep the first lines and a ring buffer with the last ones, so the memory used is bounded by
+	 * onlyTopLines + onlyBottomLines lines whatever the size of the file. If none of those properties
+	 * exist, all the lines are stored.
 	 *
+	 * @param settings Lines of the files that are stored
 	 * @param stream It represents an input stream of bytes. These bytes is the content of the file
 	 * @return It returns a string with the content of the field that we are going to index
 	 * @throws IOException
 	 */
-	private String onlyLines(InputStream stream) throws IOException {
+	static String onlyLines(Settings settings, InputStream stream) throws IOException {
 
 		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
-		StringBuilder contentsBuilder = new StringBuilder();
-		String contents = "";
-
-		//Initialize numeric variables
-		int var_onlyTopLines = Integer.MAX_VALUE;
-		int var_onlyBottomLines = Integer.MIN_VALUE;
-		//Initialize boolean variables to know if the numeric variables have changed
-		boolean topLines = false;
-		boolean bottomLines = false;
 
-		//We take the value of the property onlyTopLines and onlyBottomLines in the case they have been initialized
-		if(properties.getProperty("onlyTopLines") != null){
-			var_onlyTopLines = Integer.parseInt(properties.getProperty("onlyTopLines"));
-		}
-		if(properties.getProperty("onlyBottomLines") != null){
-			var_onlyBottomLines = Integer.parseInt(properties.getProperty("onlyBottomLines"));
+		// If there is not any property like that, we collect all lines
+		if(settings.allLines){
+			return bufferedReader.lines().collect(Collectors.joining("\n"));
 		}
 
-		// If the numeric variables have not changed, it means there is not any property like that.
-		// In that case we collect all lines
-		if(var_onlyTopLines == Integer.MAX_VALUE && var_onlyBottomLines == Integer.MIN_VALUE){
-			contents = bufferedReader.lines().collect(Collectors.joining("\n"));
-		} else {
-			// We need a list to insert the lines that we are going to store
-			List list = bufferedReader.lines().collect(Collectors.toList());
-			// It represents the size of the file in terms of lines
-			int numLines = list.size();
-
-			// We change the initial value of bottomLines if it has changed.
-			// We also compare that value with the number of lines.
-			// In the case it is bigger, we would change that value to the maximum (number of lines)
-			if(var_onlyBottomLines!=Integer.MIN_VALUE){
-				if(var_onlyBottomLines>numLines){
-					var_onlyBottomLines=numLines;
-				}
-				bottomLines = true;
-			}
+		// As it has always been, onlyBottomLines counts the first lines of the file and onlyTopLines the last ones
+		int firstLines = settings.onlyBottomLines;
+		int lastLines = settings.onlyTopLines;
 
-			// We change the initial value of topLines if it has changed.
-			// We also compare that value with the number of lines.
-			// In the case it is bigger, we would change that value to the maximum (number of lines)
-			if(var_onlyTopLines!=Integer.MAX_VALUE){
-				if (var_onlyTopLines>numLines){
-					var_onlyTopLines = numLines;
-				}
-				topLines = true;
-			}
+		StringBuilder contentsBuilder = new StringBuilder();
+		String line;
 
-			// If one of those variables is equal to the number of lines, all the content will be stored.
-			// So we only need one iteration
-			if(var_onlyBottomLines == numLines){
-				topLines = false;
-			} else if(var_onlyTopLines == numLines){
-				bottomLines = false;
-			}
+		// The first lines are appended as soon as we read them
+		int numLines = 0;
+		while(numLines < firstLines && (line = bufferedReader.readLine()) != null){
+			contentsBuilder.append(line).append(" ");
+			numLines++;
+		}
 
-			// If the sum of both variables is more than the number of lines we are going to store all the content.
-			// We hange the value of both numeric varibales
-			if(topLines && bottomLines && var_onlyBottomLines+var_onlyTopLines > numLines){
-				var_onlyBottomLines = numLines;
-				var_onlyTopLines = 0;
+		// The ring buffer keeps the last lines read after the first ones. When it is full,
+		// each new line replaces the oldest one
+		if(lastLines > 0){
+			String[] bottomLines = new String[lastLines];
+			int numBottomLines = 0;
+			while((line = bufferedReader.readLine()) != null){
+				bottomLines[numBottomLines % lastLines] = line;
+				numBottomLines++;
 			}
 
-			// If bottomLines has changed, we iterate until the value of
-			// the bottom lines we want to store
-			if(bottomLines){
-				for(int i = 0; i<var_onlyBottomLines; i++){
-					contentsBuilder.append(list.get(i)).append(" ");
-				}
+			// We start from the oldest line of the buffer
+			int first = Math.max(0, numBottomLines - lastLines);
+			for(int i = first; i<numBottomLines; i++){
+				contentsBuilder.append(bottomLines[i % lastLines]).append(" ");
 			}
-			// If topLines has changed, we iterate from the number of lines
-			// minus the value of the top lines we want to store.
-			if(topLines){
-				for (int i = list.size()-var_onlyTopLines; i<list.size();i++){
-					contentsBuilder.append(list.get(i)).append(" ");
-				}
-			}
-			// Converts the StringBuilder to a String
-			contents = contentsBuilder.toString();
-
 		}
 
-		return contents;
+		// Converts the StringBuilder to a String
+		return contentsBuilder.toString();
 	}
 
 	/**
@@ -625,55 +1489,14 @@ public class IndexFiles implements AutoCloseable {
 	 * @param fileAttributes Basic attributes associated to the file
 	 * @return Value of file's size in KB
 	 */
-	private Long getSize(BasicFileAttributes fileAttributes){
+	private long getSize(BasicFileAttributes fileAttributes){
 		//BasicFileAtrributes.size() return file's size in bytes
 		//Convert bytes in kilobytes x/1024
 		return (fileAttributes.size())/1024;
 	}
 
-	/**
-	 *
-	 * Method to know the date of creation time in Lucene form
-	 *
-	 * @param fileAttributes Basic attributes associated to the file
-	 * @return Date of creation time in Date format
-	 */
-	private Date getDateCreationTime(BasicFileAttributes fileAttributes){
-		LocalDate a = fileAttributes.creationTime().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-		return Date.from(a.atStartOfDay(ZoneId.systemDefault()).toInstant());
-	}
-
-	/**
-	 *
-	 * Method to know the date of last modified time in Lucene form
-	 *
-	 * @param fileAttributes Basic attributes associated to the file
-	 * @return Date of last modified time in Date format
-	 */
-	private Date getDateLastModifiedTime(BasicFileAttributes fileAttributes){
-		LocalDate a = fileAttributes.lastModifiedTime().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-		return Date.from(a.atStartOfDay(ZoneId.systemDefault()).toInstant());
-	}
-
-	/*
-	 * It returns it in Date format
-	 */
-
-	/**
-	 *
-	 * Method to know the date of last access time in Lucene form
-	 *
-	 * @param fileAttributes Basic attributes associated to the file
-	 * @return Date of last access time in Date format
-	 */
-	private Date getDateLastAccessTime(BasicFileAttributes fileAttributes){
-		LocalDate a = fileAttributes.lastAccessTime().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-		return Date.from(a.atStartOfDay(ZoneId.systemDefault()).toInstant());
-	}
-
-
 	@Override
 	public void close() throws IOException {
-		IOUtils.close(vectorDict);
+		IOUtils.close(embeddings, vectorDict);
 	}
 }
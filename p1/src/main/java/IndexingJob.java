@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Controls one crawl of IndexFiles: it runs the walk of the docs folder in the pool, waits for it
+ * with an optional time limit, commits the documents indexed so far every N documents or S seconds,
+ * and stops the pool and the pipeline when the crawl fails, times out or is cancelled.
+ *
+ * <p>
+ * Every commit records in its user data the docs folder and whether the crawl was finished, so an
+ * interrupted crawl can be resumed from its last commit with -resume.
+ */
+public class IndexingJob {
+	// Keys and values of the commit user data
+	static final String CRAWL_DOCS = "crawlDocs";
+	static final String CRAWL_STATE = "crawlState";
+	static final String CRAWL_DOCS_INDEXED = "crawlDocsIndexed";
+	static final String RUNNING = "running";
+	static final String COMPLETE = "complete";
+
+	private final IndexWriter writer;
+	private final List<IndexWriter> partialWriters;
+	private final IndexingProgress progress;
+	private final String docsPath;
+	private final long commitEvery;
+	private final long commitIntervalNanos;
+
+	private volatile ForkJoinPool pool;
+	private volatile IndexingPipeline pipeline;
+	private volatile boolean cancelled;
+	// Documents and time of the last commit
+	private long lastCommitDocs;
+	private long lastCommitTime = System.nanoTime();
+
+	/**
+	 * @param writer          Writer of the main index
+	 * @param partialWriters  Writers of the partial indexes, if any
+	 * @param progress        Counters of the documents indexed
+	 * @param docsPath        Folder that is crawled
+	 * @param commitEvery     Documents between intermediate commits, 0 to not commit by documents
+	 * @param commitInterval  Seconds between intermediate commits, 0 to not commit by time
+	 */
+	public IndexingJob(IndexWriter writer, List<IndexWriter> partialWriters, IndexingProgress progress,
+			Path docsPath, long commitEvery, int commitInterval) {
+		this.writer = writer;
+		this.partialWriters = partialWriters;
+		this.progress = progress;
+		this.docsPath = docsPath.toAbsolutePath().normalize().toString();
+		this.commitEvery = commitEvery;
+		this.commitIntervalNanos = TimeUnit.SECONDS.toNanos(commitInterval);
+	}
+
+	/**
+	 * @param dir      Directory of the index
+	 * @param docsPath Folder that is going to be crawled
+	 * @return true if the last commit of the index belongs to a crawl of the folder that did not finish
+	 * @throws IOException If the commit can't be read
+	 */
+	static boolean isResumable(Directory dir, Path docsPath) throws IOException {
+		Map<String, String> userData = lastCrawl(dir);
+		return RUNNING.equals(userData.get(CRAWL_STATE))
+				&& docsPath.toAbsolutePath().normalize().toString().equals(userData.get(CRAWL_DOCS));
+	}
+
+	/**
+	 * @param dir Directory of the index
+	 * @return User data of the last commit, empty if there is no index
+	 * @throws IOException If the commit can't be read
+	 */
+	static Map<String, String> lastCrawl(Directory dir) throws IOException {
+		try {
+			return SegmentInfos.readLatestCommit(dir).getUserData();
+		} catch (@SuppressWarnings("unused") IndexNotFoundException e) {
+			return Map.of();
+		}
+	}
+
+	/**
+	 * Walks the docs folder and waits until every file found has been indexed.
+	 *
+	 * @param pool           Pool that runs the tasks of the walk
+	 * @param pipeline       Pipeline where the tasks submit the files
+	 * @param tasks          Tasks of the folders and files of the docs folder
+	 * @param timeoutSeconds Maximum time of the crawl, 0 for no limit
+	 * @return true if the crawl finished, false if it was cancelled or it timed out. The documents
+	 *         indexed until then are committed, so the crawl can be resumed
+	 * @throws IOException If a task or a stage of the pipeline failed
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public boolean run(ForkJoinPool pool, IndexingPipeline pipeline, List<RecursiveAction> tasks, long timeoutSeconds)
+			throws IOException, InterruptedException {
+		this.pool = pool;
+		this.pipeline = pipeline;
+
+		ScheduledExecutorService committer = null;
+		if (commitEvery > 0 || commitIntervalNanos > 0) {
+			committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "committer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			committer.scheduleWithFixedDelay(this::maybeCommit, 1, 1, TimeUnit.SECONDS);
+		}
+
+		boolean finished = false;
+		pipeline.start();
+		try {
+			ForkJoinTask<Void> walk = pool.submit(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+			if (timeoutSeconds > 0) {
+				walk.get(timeoutSeconds, TimeUnit.SECONDS);
+			} else {
+				walk.get();
+			}
+			finished = !cancelled;
+		} catch (TimeoutException e) {
+			System.err.println("Crawl stopped after " + timeoutSeconds + " seconds");
+			stop();
+		} catch (CancellationException e) {
+			stop();
+		} catch (ExecutionException e) {
+			stop();
+			if (!cancelled) {
+				throw new IOException("crawl failed", e.getCause());
+			}
+		} finally {
+			if (committer != null) {
+				// Interrupting a commit would close the writer, the one in progress is allowed to finish
+				committer.shutdown();
+				committer.awaitTermination(1, TimeUnit.HOURS);
+			}
+			try {
+				pipeline.finish();
+			} catch (CancellationException e) {
+				// The pipeline was stopped on purpose, its pending files are not indexed
+				finished = false;
+			}
+		}
+		return finished && !cancelled;
+	}
+
+	/**
+	 * Stops the crawl. The files that are being indexed are finished, the rest are discarded.
+	 * It can be called from any thread, for example from a shutdown hook.
+	 */
+	public void cancel() {
+		cancelled = true;
+		stop();
+	}
+
+	/**
+	 * @return true if the crawl has been cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	private void stop() {
+		ForkJoinPool currentPool = pool;
+		if (currentPool != null) {
+			currentPool.shutdownNow();
+		}
+		IndexingPipeline currentPipeline = pipeline;
+		if (currentPipeline != null) {
+			currentPipeline.cancel();
+		}
+	}
+
+	/** Commits if enough documents or time have passed since the last commit */
+	private synchronized void maybeCommit() {
+		long docs = progress.getDocs();
+		boolean byDocs = commitEvery > 0 && docs - lastCommitDocs >= commitEvery;
+		boolean byTime = commitIntervalNanos > 0 && System.nanoTime() - lastCommitTime >= commitIntervalNanos;
+		if (!byDocs && !byTime) {
+			return;
+		}
+		try {
+			commit(false);
+		} catch (IOException e) {
+			// The next commit will try again, and the last one fails the crawl
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * Commits the documents indexed until now in every writer. Indexing threads don't need to stop.
+	 *
+	 * @param complete true if the crawl has finished
+	 * @throws IOException If there is a low-level I/O error
+	 */
+	public synchronized void commit(boolean complete) throws IOException {
+		long docs = progress.getDocs();
+		for (IndexWriter partialWriter : partialWriters) {
+			if (partialWriter.isOpen()) {
+				partialWriter.commit();
+			}
+		}
+		Map<String, String> userData = new HashMap<>();
+		userData.put(CRAWL_DOCS, docsPath);
+		userData.put(CRAWL_STATE, complete ? COMPLETE : RUNNING);
+		userData.put(CRAWL_DOCS_INDEXED, Long.toString(docs));
+		writer.setLiveCommitData(userData.entrySet());
+		writer.commit();
+
+		lastCommitDocs = docs;
+		lastCommitTime = System.nanoTime();
+	}
+}
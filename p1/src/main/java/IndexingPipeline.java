@@ -0,0 +1,412 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.IndexWriter;
+
+/**
+ * Pipeline used by IndexFiles to index the files found while walking the docs folder.
+ *
+ * <p>
+ * The work of each file is split in four stages, each one with its own threads:
+ * <ul>
+ * <li>readers: blocking I/O, they read the attributes and the lines of the file that are stored</li>
+ * <li>builders: they create the document</li>
+ * <li>embedders: only with a KnnVector dictionary, they compute the embeddings of batches of documents</li>
+ * <li>writers: they send the document to the IndexWriter, where it is analyzed</li>
+ * </ul>
+ * Stages are connected by bounded queues. When a stage is slower than the previous one its queue
+ * fills up and the previous stage waits, so memory is bounded while disk reads overlap with analysis.
+ *
+ * <p>
+ * On high-latency storage like NFS the readers spend most of their time blocked, so there is also an
+ * I/O mode where every file is read by its own task on virtual threads (or, before Java 21, on a big
+ * pool of platform threads with small stacks), with thousands of reads outstanding at the same time.
+ * A semaphore bounds the reads in flight, and the other stages stay sized to the CPUs.
+ */
+public class IndexingPipeline {
+
+	/** File waiting to be read */
+	private static final class FileTask {
+		final IndexWriter writer;
+		final Path file;
+
+		FileTask(IndexWriter writer, Path file) {
+			this.writer = writer;
+			this.file = file;
+		}
+	}
+
+	/** Document waiting to be embedded or written */
+	private static final class DocumentTask {
+		final IndexWriter writer;
+		final IndexFiles.SourceFile source;
+		final IndexFiles.DocumentTemplate template;
+
+		DocumentTask(IndexWriter writer, IndexFiles.SourceFile source, IndexFiles.DocumentTemplate template) {
+			this.writer = writer;
+			this.source = source;
+			this.template = template;
+		}
+	}
+
+	// Items that tell the threads of a stage that there is no more work
+	private static final FileTask END_OF_FILES = new FileTask(null, null);
+	private static final IndexFiles.SourceFile END_OF_SOURCES = new IndexFiles.SourceFile(null, null, null, null, null, null, null);
+	private static final DocumentTask END_OF_DOCUMENTS = new DocumentTask(null, null, null);
+	private static final DocumentTask END_OF_EMBEDDINGS = new DocumentTask(null, null, null);
+
+	/**
+	 * Group of threads that take items from the same queue until they find the end item.
+	 * Items are processed in batches of the items that are already waiting.
+	 */
+	private abstract class Stage<T> {
+		final BlockingQueue<T> queue;
+		private final T end;
+		private final int batchSize;
+		private final Thread[] threads;
+
+		Stage(String name, int numThreads, int capacity, T end) {
+			this(name, numThreads, capacity, end, 1);
+		}
+
+		Stage(String name, int numThreads, int capacity, T end, int batchSize) {
+			this.queue = new ArrayBlockingQueue<>(capacity);
+			this.end = end;
+			this.batchSize = Math.max(1, batchSize);
+			this.threads = new Thread[numThreads];
+			for (int i = 0; i < numThreads; i++) {
+				threads[i] = new Thread(this::run, name + "-" + i);
+			}
+		}
+
+		abstract void process(List<T> batch) throws Exception;
+
+		private void run() {
+			try {
+				List<T> batch = new ArrayList<>(batchSize);
+				T item = queue.take();
+				while (item != end) {
+					// The batch takes the items that are already waiting, without waiting for more
+					batch.add(item);
+					while (batch.size() < batchSize && (item = queue.poll()) != null && item != end) {
+						batch.add(item);
+					}
+					// After a failure we keep draining the queue, so the previous stages never get blocked
+					if (failure.get() == null) {
+						try {
+							process(batch);
+						} catch (Throwable t) {
+							failure.compareAndSet(null, t);
+						}
+					}
+					batch.clear();
+					if (item != end) {
+						item = queue.take();
+					}
+				}
+				// Let the other threads of the stage also find the end
+				queue.put(end);
+			} catch (InterruptedException e) {
+				failure.compareAndSet(null, e);
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		void start() {
+			for (Thread thread : threads) {
+				thread.start();
+			}
+		}
+
+		/** Waits until every item in the queue has been processed */
+		void finish() throws InterruptedException {
+			queue.put(end);
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			// Only the end item is left
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Stage whose items are processed one by one.
+	 */
+	private abstract class ItemStage<T> extends Stage<T> {
+		ItemStage(String name, int numThreads, int capacity, T end) {
+			super(name, numThreads, capacity, end);
+		}
+
+		abstract void process(T item) throws Exception;
+
+		@Override
+		final void process(List<T> batch) throws Exception {
+			for (T item : batch) {
+				process(item);
+			}
+		}
+	}
+
+	// Reads at the same time in I/O mode when every read needs its own platform thread
+	private static final int MAX_PLATFORM_IO_THREADS = 64;
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	// Templates that are not in use. Builders take one and writers give it back once the document is written
+	private final BlockingQueue<IndexFiles.DocumentTemplate> templates;
+	private final IndexFiles indexFiles;
+	// Only one of them is used: the readers stage, or the executor of the I/O mode
+	private final Stage<FileTask> readers;
+	private final ExecutorService ioExecutor;
+	// Reads that can be in flight in I/O mode
+	private final int ioConcurrency;
+	private final Semaphore ioPermits;
+	private final Stage<IndexFiles.SourceFile> builders;
+	// Null if the documents have no embeddings
+	private final Stage<DocumentTask> embedders;
+	private final Stage<DocumentTask> writers;
+
+	/**
+	 * @param indexFiles    Indexer that reads and builds the documents
+	 * @param readerThreads Number of threads that read files, when ioConcurrency is 0
+	 * @param ioConcurrency Maximum number of files read at the same time by the I/O mode, 0 to use the readers
+	 * @param numThreads    Number of threads that build documents, and of threads that write them
+	 * @param queueSize     Capacity of each queue between stages
+	 * @param embeddingBatch Maximum number of documents whose embeddings are computed together
+	 */
+	public IndexingPipeline(IndexFiles indexFiles, int readerThreads, int ioConcurrency, int numThreads, int queueSize,
+			int embeddingBatch) {
+		this.indexFiles = indexFiles;
+		// There are enough templates for every document in the queues of the embedders and the writers and in
+		// the hands of the threads
+		int numTemplates = 2 * queueSize + (indexFiles.hasEmbeddings() ? numThreads * Math.max(1, embeddingBatch) : 0)
+				+ 2 * numThreads;
+		templates = new ArrayBlockingQueue<>(numTemplates);
+		for (int i = 0; i < numTemplates; i++) {
+			templates.add(indexFiles.newDocumentTemplate());
+		}
+
+		writers = new ItemStage<>("writer", numThreads, queueSize, END_OF_DOCUMENTS) {
+			@Override
+			void process(DocumentTask task) throws Exception {
+				try {
+					indexFiles.writeDocument(task.writer, task.source.file, task.template.document());
+				} finally {
+					templates.put(task.template);
+				}
+			}
+		};
+		builders = new ItemStage<>("builder", numThreads, queueSize, END_OF_SOURCES) {
+			@Override
+			void process(IndexFiles.SourceFile source) throws Exception {
+				IndexFiles.DocumentTemplate template = templates.take();
+				indexFiles.buildDocument(source, template);
+				DocumentTask task = new DocumentTask(source.writer, source, template);
+				(embedders != null ? embedders.queue : writers.queue).put(task);
+			}
+		};
+		if (indexFiles.hasEmbeddings()) {
+			embedders = new Stage<>("embedder", numThreads, queueSize, END_OF_EMBEDDINGS, embeddingBatch) {
+				@Override
+				void process(List<DocumentTask> batch) throws Exception {
+					List<DocumentTask> toEmbed = new ArrayList<>(batch.size());
+					List<IndexFiles.SourceFile> sources = new ArrayList<>(batch.size());
+					List<IndexFiles.DocumentTemplate> batchTemplates = new ArrayList<>(batch.size());
+					for (DocumentTask task : batch) {
+						// Copies of other files have no contents, so they have no embedding
+						if (task.source.duplicateOf != null) {
+							writers.queue.put(task);
+							continue;
+						}
+						toEmbed.add(task);
+						sources.add(task.source);
+						batchTemplates.add(task.template);
+					}
+					if (toEmbed.isEmpty()) {
+						return;
+					}
+					boolean[] embedded = indexFiles.embedDocuments(sources, batchTemplates);
+					for (int i = 0; i < toEmbed.size(); i++) {
+						if (embedded[i]) {
+							writers.queue.put(toEmbed.get(i));
+						} else {
+							// don't index files that can't be read.
+							templates.put(toEmbed.get(i).template);
+						}
+					}
+				}
+			};
+		} else {
+			embedders = null;
+		}
+
+		if (ioConcurrency > 0) {
+			readers = null;
+			ExecutorService virtualThreads = newVirtualThreadExecutor();
+			if (virtualThreads == null && ioConcurrency > MAX_PLATFORM_IO_THREADS) {
+				System.err.println("Without virtual threads (Java 21) at most " + MAX_PLATFORM_IO_THREADS
+						+ " files are read at the same time, instead of " + ioConcurrency);
+				ioConcurrency = MAX_PLATFORM_IO_THREADS;
+			}
+			ioExecutor = virtualThreads != null ? virtualThreads : newPlatformIoExecutor(ioConcurrency);
+			ioPermits = new Semaphore(ioConcurrency);
+		} else {
+			ioExecutor = null;
+			ioPermits = null;
+			readers = new ItemStage<>("reader", readerThreads, queueSize, END_OF_FILES) {
+				@Override
+				void process(FileTask task) throws Exception {
+					read(task);
+				}
+			};
+		}
+		this.ioConcurrency = ioConcurrency;
+	}
+
+	/**
+	 * @return An executor with a virtual thread per task, or null if the JVM doesn't have them (before Java 21)
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			// Looked up by reflection so the project still compiles and runs with Java 11
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (@SuppressWarnings("unused") ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param ioConcurrency Maximum number of files read at the same time, at most {@link #MAX_PLATFORM_IO_THREADS}
+	 * @return A pool of platform threads with small stacks, since they only wait for the file system
+	 */
+	private static ExecutorService newPlatformIoExecutor(int ioConcurrency) {
+		AtomicInteger counter = new AtomicInteger();
+		return Executors.newFixedThreadPool(ioConcurrency, runnable -> {
+			Thread thread = new Thread(null, runnable, "io-" + counter.getAndIncrement(), 256 * 1024);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/** Reads a file and gives its contents to the builders */
+	private void read(FileTask task) throws InterruptedException {
+		try {
+			IndexFiles.SourceFile source = indexFiles.readSource(task.writer, task.file);
+			// Files that have not changed since they were indexed are not read again
+			if (source != null) {
+				builders.queue.put(source);
+			}
+		} catch (@SuppressWarnings("unused") IOException ignore) {
+			ignore.printStackTrace(System.err);
+			// don't index files that can't be read.
+		}
+	}
+
+	/** Starts the threads of every stage */
+	public void start() {
+		writers.start();
+		if (embedders != null) {
+			embedders.start();
+		}
+		builders.start();
+		if (readers != null) {
+			readers.start();
+		}
+	}
+
+	/**
+	 * Adds a file to the pipeline. It waits while the readers' queue is full.
+	 *
+	 * @param writer Writer that will receive the document of the file
+	 * @param file   File to index
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public void submit(IndexWriter writer, Path file) throws InterruptedException {
+		FileTask task = new FileTask(writer, file);
+		if (readers != null) {
+			readers.queue.put(task);
+			return;
+		}
+
+		// In I/O mode the permit is given back when the read has finished
+		ioPermits.acquire();
+		try {
+			ioExecutor.execute(() -> {
+				try {
+					if (failure.get() == null) {
+						read(task);
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					ioPermits.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			ioPermits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Number of items waiting in each queue, to know which stage is the bottleneck
+	 */
+	public String queueStatus() {
+		int reading = readers != null ? readers.queue.size() : ioConcurrency - ioPermits.availablePermits();
+		return "queues: read " + reading + ", build " + builders.queue.size()
+				+ (embedders != null ? ", embed " + embedders.queue.size() : "") + ", write " + writers.queue.size();
+	}
+
+	/**
+	 * Stops indexing: the files that are being processed are finished and the ones in the queues are
+	 * discarded. {@link #finish()} must still be called to stop the threads.
+	 */
+	public void cancel() {
+		failure.compareAndSet(null, new CancellationException("indexing cancelled"));
+	}
+
+	/**
+	 * Waits until every submitted file has been indexed and stops the threads.
+	 *
+	 * @throws IOException If a stage failed with an unexpected error
+	 * @throws CancellationException If the pipeline was cancelled
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public void finish() throws IOException, InterruptedException {
+		if (readers != null) {
+			readers.finish();
+		} else {
+			// Every permit is back once the reads in flight have finished
+			ioPermits.acquire(ioConcurrency);
+			ioPermits.release(ioConcurrency);
+			ioExecutor.shutdown();
+			while (!ioExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+				System.err.println("Waiting for the reads in flight to finish");
+			}
+		}
+		builders.finish();
+		if (embedders != null) {
+			embedders.finish();
+		}
+		writers.finish();
+
+		Throwable t = failure.get();
+		if (t instanceof CancellationException) {
+			throw (CancellationException) t;
+		} else if (t instanceof IOException) {
+			throw (IOException) t;
+		} else if (t != null) {
+			throw new IOException("indexing pipeline failed", t);
+		}
+	}
+}
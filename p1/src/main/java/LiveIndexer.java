@@ -0,0 +1,312 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Keeps the index of IndexFiles up to date after its crawl. It watches the folders of the docs tree
+ * with a {@link WatchService}: created and modified files are sent to the same pipeline as the crawl,
+ * and the documents of deleted files (or of every file under a deleted folder) are removed.
+ *
+ * <p>
+ * Events come in bursts (an editor saving a file, a folder being copied), so they are collected until
+ * the tree has been quiet for a while and each file is indexed once per burst. A {@link SearcherManager}
+ * over the writer is refreshed every few seconds, and queries typed in the standard input are run
+ * against it, so changes can be searched in seconds without waiting for a commit.
+ */
+public class LiveIndexer {
+	// A burst that never gets quiet is still processed after this many quiet periods
+	private static final int MAX_DELAY_PERIODS = 10;
+
+	private final IndexWriter writer;
+	private final IndexFiles indexFiles;
+	private final IndexingPipeline pipeline;
+	private final IndexingJob job;
+	private final Path docDir;
+	// Levels of folders under the docs folder whose files are indexed, like in the crawl
+	private final int deep;
+	private final long quietMillis;
+	private final SearcherManager searcherManager;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> watchedFolders = new HashMap<>();
+	private final Set<Path> registeredFolders = new HashSet<>();
+	private final ScheduledExecutorService scheduler;
+	private volatile boolean stopped;
+
+	/**
+	 * @param writer        Writer of the index, already crawled
+	 * @param indexFiles    Indexer of the crawl
+	 * @param pipeline      New pipeline for the files that change
+	 * @param job           Job of the crawl, used to commit
+	 * @param docDir        Docs folder
+	 * @param deep          Levels of subfolders of the docs folder that are indexed
+	 * @param quietMillis   Milliseconds without events before a burst is indexed
+	 * @param refreshMillis Milliseconds between refreshes of the searcher
+	 * @param commitSeconds Seconds between commits, if there were changes
+	 * @throws IOException If the folders can't be watched
+	 */
+	public LiveIndexer(IndexWriter writer, IndexFiles indexFiles, IndexingPipeline pipeline, IndexingJob job,
+			Path docDir, int deep, long quietMillis, long refreshMillis, int commitSeconds) throws IOException {
+		this.writer = writer;
+		this.indexFiles = indexFiles;
+		this.pipeline = pipeline;
+		this.job = job;
+		this.docDir = docDir;
+		this.deep = deep;
+		this.quietMillis = quietMillis;
+		this.searcherManager = new SearcherManager(writer, null);
+		this.watchService = docDir.getFileSystem().newWatchService();
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "refresher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(this::commit, commitSeconds, commitSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Watches the docs tree until {@link #stop()} is called.
+	 *
+	 * @throws IOException If the index can't be updated
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public void run() throws IOException, InterruptedException {
+		indexFiles.updateAlways();
+		register(docDir, false);
+		pipeline.start();
+		startConsole();
+		System.out.println("Watching '" + docDir + "' for changes. Type a query to search the live index");
+
+		// Paths changed in the current burst, in order and only once
+		Set<Path> pending = new LinkedHashSet<>();
+		long burstStart = 0;
+		try {
+			while (!stopped) {
+				WatchKey key = watchService.poll(quietMillis, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					if (pending.isEmpty()) {
+						burstStart = System.currentTimeMillis();
+					}
+					collect(key, pending);
+				}
+				boolean quiet = key == null;
+				boolean tooLate = System.currentTimeMillis() - burstStart >= MAX_DELAY_PERIODS * quietMillis;
+				if (!pending.isEmpty() && (quiet || tooLate)) {
+					for (Path path : pending) {
+						apply(path);
+					}
+					pending.clear();
+				}
+			}
+		} catch (@SuppressWarnings("unused") ClosedWatchServiceException e) {
+			// stop() closes the service to wake up the loop
+		} finally {
+			scheduler.shutdown();
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+			pipeline.finish();
+			searcherManager.close();
+		}
+	}
+
+	/**
+	 * Stops watching. The files already sent to the pipeline are indexed. It can be called from any thread.
+	 */
+	public void stop() {
+		stopped = true;
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * Adds the paths of the events of a folder to the burst.
+	 */
+	private void collect(WatchKey key, Set<Path> pending) throws IOException {
+		Path folder = watchedFolders.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// Some events were lost, so the whole tree is checked again
+				System.err.println("Too many changes at once, walking '" + docDir + "' again");
+				register(docDir, true);
+				continue;
+			}
+			if (folder != null) {
+				pending.add(folder.resolve((Path) event.context()));
+			}
+		}
+		if (!key.reset()) {
+			// The folder has been deleted
+			registeredFolders.remove(watchedFolders.remove(key));
+		}
+	}
+
+	/**
+	 * Brings the index up to date with the current state of a path.
+	 */
+	private void apply(Path path) throws IOException, InterruptedException {
+		if (Files.isDirectory(path)) {
+			// A new folder may come with files, that don't have their own events. The events of the
+			// folders already watched only tell that something inside them changed
+			if (!registeredFolders.contains(path) && level(path) <= deep) {
+				register(path, true);
+			}
+		} else if (Files.exists(path)) {
+			if (indexFiles.acceptFile(path)) {
+				pipeline.submit(writer, path);
+			}
+		} else {
+			// The path may have been a file or a folder. Earlier versions may still be in the pipeline
+			indexFiles.deleteDocuments(writer, path);
+		}
+	}
+
+	/**
+	 * @param folder Folder of the docs tree
+	 * @return Its level under the docs folder: 0 for the docs folder, 1 for its subfolders...
+	 */
+	private int level(Path folder) {
+		return folder.equals(docDir) ? 0 : docDir.relativize(folder).getNameCount();
+	}
+
+	/**
+	 * Watches a folder and its subfolders, down to the depth of the crawl.
+	 *
+	 * @param folder      Folder to watch
+	 * @param submitFiles If true, the files found are also indexed
+	 */
+	private void register(Path folder, boolean submitFiles) throws IOException {
+		// The files of the deepest folders are visited, and the folders at their level are not watched
+		int maxDepth = (int) Math.min(Integer.MAX_VALUE, (long) deep - level(folder) + 1);
+		Files.walkFileTree(folder, EnumSet.of(FileVisitOption.FOLLOW_LINKS), maxDepth,
+				new SimpleFileVisitor<>() {
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+						if (registeredFolders.add(dir)) {
+							WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+									StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+							watchedFolders.put(key, dir);
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						if (submitFiles && attrs.isRegularFile() && indexFiles.acceptFile(file)) {
+							try {
+								pipeline.submit(writer, file);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								return FileVisitResult.TERMINATE;
+							}
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						// Loops of symbolic links and files that can't be read are ignored
+						if (!(e instanceof FileSystemLoopException)) {
+							e.printStackTrace(System.err);
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+	}
+
+	/** Makes the documents written until now visible to the searches */
+	private void refresh() {
+		try {
+			searcherManager.maybeRefresh();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/** Makes the changes durable, if there are any */
+	private void commit() {
+		if (!writer.hasUncommittedChanges()) {
+			return;
+		}
+		try {
+			job.commit(true);
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * Runs the queries typed in the standard input against the live index, until it is closed.
+	 */
+	private void startConsole() {
+		Thread console = new Thread(() -> {
+			QueryParser parser = new QueryParser("contents", new StandardAnalyzer());
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+				String line;
+				while (!stopped && (line = in.readLine()) != null) {
+					if (!line.isBlank()) {
+						search(parser, line.trim());
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace(System.err);
+			}
+		}, "console");
+		console.setDaemon(true);
+		console.start();
+	}
+
+	private void search(QueryParser parser, String line) throws IOException {
+		Query query;
+		try {
+			query = parser.parse(line);
+		} catch (ParseException e) {
+			System.out.println("Wrong query: " + e.getMessage());
+			return;
+		}
+		IndexSearcher searcher = searcherManager.acquire();
+		try {
+			TopDocs topDocs = searcher.search(query, 10);
+			System.out.println(topDocs.totalHits.value + " matching documents");
+			for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+				System.out.println(searcher.doc(scoreDoc.doc).get("path"));
+			}
+		} finally {
+			searcherManager.release(searcher);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+
+public class SearchAttributes {
+
+	// Attributes indexed by IndexFiles as LongPoint + NumericDocValuesField
+	private static final Set<String> NUMERIC_FIELDS = Set.of("modified", "sizeKB", "creationTime", "lastAccessTime",
+			"lastModifiedTime", "creationTimeLucene", "lastAccessTimeLucene", "lastModifiedTimeLucene");
+	// Times indexed by IndexFiles in Lucene's format (yyyyMMddHHmmss) instead of milliseconds
+	private static final Set<String> LUCENE_TIME_FIELDS = Set.of("creationTimeLucene", "lastAccessTimeLucene",
+			"lastModifiedTimeLucene");
+	// Attributes indexed by IndexFiles as StringField + SortedDocValuesField
+	private static final Set<String> KEYWORD_FIELDS = Set.of("type", "hostname", "thread");
+
+	/**
+	 * Counts the matching documents for each value of a keyword field, reading only its doc values
+	 */
+	private static class FacetCollector extends SimpleCollector {
+		private final String field;
+		private final Map<String, Integer> counts = new TreeMap<>();
+		private SortedDocValues values;
+		private int[] ordCounts;
+
+		FacetCollector(String field) {
+			this.field = field;
+		}
+
+		@Override
+		protected void doSetNextReader(LeafReaderContext context) throws IOException {
+			addCounts();
+			values = context.reader().getSortedDocValues(field);
+			ordCounts = values != null ? new int[values.getValueCount()] : null;
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			if (values != null && values.advanceExact(doc)) {
+				ordCounts[values.ordValue()]++;
+			}
+		}
+
+		/**
+		 * Adds the counts of the current segment, from ordinals to values
+		 */
+		private void addCounts() throws IOException {
+			if (values == null) {
+				return;
+			}
+			for (int ord = 0; ord < ordCounts.length; ord++) {
+				if (ordCounts[ord] > 0) {
+					counts.merge(values.lookupOrd(ord).utf8ToString(), ordCounts[ord], Integer::sum);
+				}
+			}
+		}
+
+		Map<String, Integer> getCounts() throws IOException {
+			addCounts();
+			values = null;
+			return counts;
+		}
+
+		@Override
+		public ScoreMode scoreMode() {
+			return ScoreMode.COMPLETE_NO_SCORES;
+		}
+	}
+
+	/**
+	 * This method is responsible for starting the execution of the program.
+	 * It is the project's main method.
+	 * @param args Array with parameters added by the user
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		// Variable initialization
+		String usage = "java org.apache.lucene.SearchAttributes"
+				+ " [-index INDEX_PATH] [-range FIELD MIN MAX]... [-term FIELD VALUE]... [-sort FIELD [asc|desc]]"
+				+ " [-facet FIELD] [-top N]\n\n"
+				+ "This searches the files indexed by IndexFiles in INDEX_PATH by their attributes.\n"
+				+ "Numeric fields: " + NUMERIC_FIELDS + ". Times can also be given as yyyy-MM-dd, the ranges include the whole days\n"
+				+ "Keyword fields: " + KEYWORD_FIELDS + ". They can also be used with -facet to count the matches of each value";
+
+		String indexPath = null;
+		List<Query> filters = new ArrayList<>();
+		String sortField = null;
+		boolean reverse = false;
+		String facetField = null;
+		int top = 10;
+
+		// Loop in which we will obtain the parameters given by the user
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "-index":
+					indexPath = args[++i];
+					break;
+				case "-range": {
+					String field = numericField(args[++i]);
+					filters.add(LongPoint.newRangeQuery(field, parseLong(field, args[++i], false),
+							parseLong(field, args[++i], true)));
+					break;
+				}
+				case "-term": {
+					String field = keywordField(args[++i]);
+					filters.add(new TermQuery(new Term(field, args[++i])));
+					break;
+				}
+				case "-sort":
+					sortField = sortField(args[++i]);
+					if (i + 1 < args.length && (args[i + 1].equals("asc") || args[i + 1].equals("desc"))) {
+						reverse = args[++i].equals("desc");
+					}
+					break;
+				case "-facet":
+					facetField = keywordField(args[++i]);
+					break;
+				case "-top":
+					top = Integer.parseInt(args[++i]);
+					break;
+				default:
+					throw new IllegalArgumentException("unknown parameter " + args[i]);
+			}
+		}
+
+		// Check that mandatory parameters exist
+		if (indexPath == null) {
+			System.err.println("Usage: " + usage);
+			System.exit(1);
+		}
+
+		// Every condition is a filter, they don't need scores
+		Query query;
+		if (filters.isEmpty()) {
+			query = new MatchAllDocsQuery();
+		} else {
+			BooleanQuery.Builder builder = new BooleanQuery.Builder();
+			for (Query filter : filters) {
+				builder.add(filter, BooleanClause.Occur.FILTER);
+			}
+			query = builder.build();
+		}
+
+		try (DirectoryReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)))) {
+			IndexSearcher searcher = new IndexSearcher(reader);
+
+			// Sorting uses the doc values of the field
+			TopDocs topDocs;
+			if (sortField != null) {
+				SortField.Type type = NUMERIC_FIELDS.contains(sortField) ? SortField.Type.LONG
+						: SortField.Type.STRING;
+				topDocs = searcher.search(query, Math.max(1, top), new Sort(new SortField(sortField, type, reverse)));
+			} else {
+				topDocs = searcher.search(query, Math.max(1, top));
+			}
+
+			System.out.println(topDocs.totalHits.value + " matching documents");
+			for (int i = 0; i < Math.min(top, topDocs.scoreDocs.length); i++) {
+				ScoreDoc scoreDoc = topDocs.scoreDocs[i];
+				String path = reader.document(scoreDoc.doc, Collections.singleton("path")).get("path");
+				if (scoreDoc instanceof FieldDoc) {
+					System.out.println(path + "\t" + sortField + " = " + valueOf(((FieldDoc) scoreDoc).fields[0]));
+				} else {
+					System.out.println(path);
+				}
+			}
+
+			if (facetField != null) {
+				FacetCollector collector = new FacetCollector(facetField);
+				searcher.search(query, collector);
+				System.out.println("\nDocuments by " + facetField + ":");
+				for (Map.Entry<String, Integer> entry : collector.getCounts().entrySet()) {
+					System.out.println(entry.getKey() + "\t" + entry.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param field Numeric field
+	 * @param value Its value: a number or a date in yyyy-MM-dd format
+	 * @param upper If the value is the upper bound of an inclusive range
+	 * @return The number. Dates are converted to the format of the field: Lucene's format (yyyyMMddHHmmss)
+	 * for the *TimeLucene fields, milliseconds for the rest. A lower bound is the start of that day, and an
+	 * upper bound its last millisecond, so the whole day is in the range
+	 */
+	private static long parseLong(String field, String value, boolean upper) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			LocalDate day = LocalDate.parse(value);
+			ZoneId zone = ZoneId.systemDefault();
+			long time = upper ? day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1
+					: day.atStartOfDay(zone).toInstant().toEpochMilli();
+			if (LUCENE_TIME_FIELDS.contains(field)) {
+				return Long.parseLong(DateTools.timeToString(time, DateTools.Resolution.SECOND));
+			}
+			return time;
+		}
+	}
+
+	/**
+	 * @param value Value of a sort field, as returned by Lucene
+	 * @return The value to show
+	 */
+	private static String valueOf(Object value) {
+		if (value instanceof BytesRef) {
+			return ((BytesRef) value).utf8ToString();
+		}
+		return String.valueOf(value);
+	}
+
+	private static String numericField(String field) {
+		if (!NUMERIC_FIELDS.contains(field)) {
+			throw new IllegalArgumentException("not a numeric field " + field);
+		}
+		return field;
+	}
+
+	private static String keywordField(String field) {
+		if (!KEYWORD_FIELDS.contains(field)) {
+			throw new IllegalArgumentException("not a keyword field " + field);
+		}
+		return field;
+	}
+
+	private static String sortField(String field) {
+		if (!NUMERIC_FIELDS.contains(field) && !KEYWORD_FIELDS.contains(field)) {
+			throw new IllegalArgumentException("can't sort by field " + field);
+		}
+		return field;
+	}
+}
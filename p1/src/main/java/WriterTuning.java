@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.util.InfoStream;
+
+/**
+ * Options of the IndexWriter that trade bulk indexing throughput for the number of segments of the
+ * index: RAM buffer, TieredMergePolicy, ConcurrentMergeScheduler threads, compound files and a final
+ * forceMerge. They are given as flags (-ramBufferMB 256) or in a properties file (-writerConfig FILE)
+ * with the same names as keys; flags win over the file.
+ *
+ * <p>
+ * It also measures the time spent flushing and merging segments, to report it at the end.
+ *
+ * <p>
+ * p1 and p2 have the same copy of this class: a change in one of them goes in both.
+ */
+public class WriterTuning {
+	// Names of the options, as flags without the '-' and as keys of the properties file
+	static final List<String> OPTIONS = Arrays.asList("ramBufferMB", "maxBufferedDocs", "segmentsPerTier",
+			"maxMergeAtOnce", "maxMergedSegmentMB", "floorSegmentMB", "mergeThreads", "maxMerges", "useCompoundFile",
+			"forceMerge");
+
+	// Message of the flush of a segment, written by Lucene in the "DWPT" component of the InfoStream
+	private static final Pattern FLUSH_TIME = Pattern.compile("^flush time ([0-9.,]+) msec");
+
+	private final Properties options = new Properties();
+	private final Properties flags = new Properties();
+
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder flushMicros = new LongAdder();
+	private final LongAdder merges = new LongAdder();
+	private final LongAdder mergeNanos = new LongAdder();
+	private long forceMergeNanos;
+
+	/**
+	 * @return Description of the options for the usage of the programs
+	 */
+	static String usage() {
+		return "IndexWriter options, as flags or in the properties file of -writerConfig FILE:"
+				+ " [-ramBufferMB MB] [-maxBufferedDocs N] [-segmentsPerTier N] [-maxMergeAtOnce N]"
+				+ " [-maxMergedSegmentMB MB] [-floorSegmentMB MB] [-mergeThreads N] [-maxMerges N]"
+				+ " [-useCompoundFile true|false] [-forceMerge MAX_SEGMENTS]";
+	}
+
+	/**
+	 * Reads an option of the command line.
+	 *
+	 * @param args Arguments of the program
+	 * @param i    Position of the flag
+	 * @return Position of the last argument used, or -1 if args[i] is not an option of the writer
+	 * @throws IOException If the properties file can't be read
+	 */
+	int parse(String[] args, int i) throws IOException {
+		if (args[i].equals("-writerConfig")) {
+			try (Reader reader = Files.newBufferedReader(Paths.get(args[++i]))) {
+				options.load(reader);
+			}
+			return i;
+		}
+		String name = args[i].substring(1);
+		if (!args[i].startsWith("-") || !OPTIONS.contains(name)) {
+			return -1;
+		}
+		flags.setProperty(name, args[++i]);
+		return i;
+	}
+
+	private String get(String name) {
+		return flags.getProperty(name, options.getProperty(name));
+	}
+
+	private int getInt(String name, int defaultValue) {
+		String value = get(name);
+		return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+	}
+
+	private double getDouble(String name, double defaultValue) {
+		String value = get(name);
+		return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+	}
+
+	/**
+	 * Applies the options to the configuration of a writer. Each writer needs its own configuration.
+	 *
+	 * @param iwc Configuration of a new IndexWriter
+	 * @return The same configuration
+	 */
+	IndexWriterConfig apply(IndexWriterConfig iwc) {
+		// Flushing by documents only makes sense when the RAM buffer doesn't flush first
+		int maxBufferedDocs = getInt("maxBufferedDocs", IndexWriterConfig.DISABLE_AUTO_FLUSH);
+		double ramBufferMB = getDouble("ramBufferMB", maxBufferedDocs != IndexWriterConfig.DISABLE_AUTO_FLUSH
+				? IndexWriterConfig.DISABLE_AUTO_FLUSH : IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB);
+		iwc.setMaxBufferedDocs(maxBufferedDocs);
+		iwc.setRAMBufferSizeMB(ramBufferMB);
+
+		TieredMergePolicy mergePolicy = new TieredMergePolicy();
+		mergePolicy.setSegmentsPerTier(getDouble("segmentsPerTier", mergePolicy.getSegmentsPerTier()));
+		mergePolicy.setMaxMergeAtOnce(getInt("maxMergeAtOnce", mergePolicy.getMaxMergeAtOnce()));
+		mergePolicy.setMaxMergedSegmentMB(getDouble("maxMergedSegmentMB", mergePolicy.getMaxMergedSegmentMB()));
+		mergePolicy.setFloorSegmentMB(getDouble("floorSegmentMB", mergePolicy.getFloorSegmentMB()));
+		String useCompoundFile = get("useCompoundFile");
+		if (useCompoundFile != null) {
+			boolean compound = Boolean.parseBoolean(useCompoundFile.trim());
+			// New segments follow the config, merged segments the policy
+			iwc.setUseCompoundFile(compound);
+			mergePolicy.setNoCFSRatio(compound ? 1.0 : 0.0);
+		}
+		iwc.setMergePolicy(mergePolicy);
+
+		ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler() {
+			@Override
+			protected void doMerge(MergeScheduler.MergeSource mergeSource, MergePolicy.OneMerge merge)
+					throws IOException {
+				long start = System.nanoTime();
+				try {
+					super.doMerge(mergeSource, merge);
+				} finally {
+					merges.increment();
+					mergeNanos.add(System.nanoTime() - start);
+				}
+			}
+		};
+		int mergeThreads = getInt("mergeThreads", ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS);
+		if (mergeThreads != ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS) {
+			// Merges waiting beyond the running ones stall the indexing threads
+			mergeScheduler.setMaxMergesAndThreads(Math.max(mergeThreads, getInt("maxMerges", mergeThreads + 5)),
+					mergeThreads);
+		} else if (get("maxMerges") != null) {
+			// The scheduler only accepts both limits, the threads are the ones it detects for an SSD
+			int maxMerges = Math.max(1, getInt("maxMerges", 1));
+			int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+			mergeScheduler.setMaxMergesAndThreads(maxMerges, Math.min(threads, maxMerges));
+		}
+		iwc.setMergeScheduler(mergeScheduler);
+
+		iwc.setInfoStream(new InfoStream() {
+			@Override
+			public void message(String component, String message) {
+				Matcher matcher = FLUSH_TIME.matcher(message);
+				if (matcher.find()) {
+					flushes.increment();
+					flushMicros.add((long) (Double.parseDouble(matcher.group(1).replace(',', '.')) * 1000));
+				}
+			}
+
+			@Override
+			public boolean isEnabled(String component) {
+				return component.equals("DWPT");
+			}
+
+			@Override
+			public void close() {
+			}
+		});
+		return iwc;
+	}
+
+	/**
+	 * Runs the final forceMerge, if it was asked for.
+	 *
+	 * @param writer Writer of the index, once every document has been added
+	 * @throws IOException If there is a low-level I/O error
+	 */
+	void forceMerge(IndexWriter writer) throws IOException {
+		int maxSegments = getInt("forceMerge", 0);
+		if (maxSegments > 0) {
+			long start = System.nanoTime();
+			writer.forceMerge(maxSegments);
+			forceMergeNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * @return Time spent flushing and merging segments. Merges run in parallel with indexing, so their
+	 *         time is added across threads
+	 */
+	String report() {
+		String report = String.format(Locale.ROOT, "%d flushes in %.1f s, %d merges in %.1f s",
+				flushes.sum(), flushMicros.sum() / 1e6, merges.sum(), mergeNanos.sum() / 1e9);
+		if (forceMergeNanos > 0) {
+			report += String.format(Locale.ROOT, ", forceMerge in %.1f s", forceMergeNanos / 1e9);
+		}
+		return report;
+	}
+}
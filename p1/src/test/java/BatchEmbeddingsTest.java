@@ -0,0 +1,121 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.demo.knn.DemoEmbeddings;
+import org.apache.lucene.demo.knn.KnnVectorDict;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The embeddings of a batch must be the ones of {@link DemoEmbeddings}, document by document.
+ */
+public class BatchEmbeddingsTest {
+
+	private static final String[] TEXTS = {
+			"The quick brown fox jumps over the lazy dog",
+			"the THE The fox, the dog; and the fox again",
+			"words that are not in the dictionary: zebra yak",
+			"Brown dogs and quick foxes" };
+
+	@TempDir
+	Path tempDir;
+
+	private KnnVectorDict dictionary(Directory dir) throws IOException {
+		// Sorted by term, with vectors of 4 dimensions
+		String[] terms = { "again", "and", "brown", "dog", "fox", "jumps", "lazy", "over", "quick", "the" };
+		StringBuilder glove = new StringBuilder();
+		for (int i = 0; i < terms.length; i++) {
+			glove.append(terms[i]);
+			for (int j = 0; j < 4; j++) {
+				glove.append(' ').append((i * 7 + j * 3) % 11 - 5 + 0.25f * j);
+			}
+			glove.append('\n');
+		}
+		Path gloveFile = tempDir.resolve("glove.txt");
+		Files.write(gloveFile, glove.toString().getBytes(StandardCharsets.UTF_8));
+		KnnVectorDict.build(gloveFile, dir, IndexFiles.KNN_DICT);
+		return new KnnVectorDict(dir, IndexFiles.KNN_DICT);
+	}
+
+	private static List<BatchEmbeddings.Text> batch(int dimension, String... hashes) {
+		List<BatchEmbeddings.Text> batch = new ArrayList<>();
+		for (int i = 0; i < TEXTS.length; i++) {
+			ByteBuffer contents = ByteBuffer.wrap(TEXTS[i].getBytes(StandardCharsets.UTF_8));
+			batch.add(new BatchEmbeddings.Text(contents, null, hashes.length > 0 ? hashes[i] : null, new float[dimension]));
+		}
+		return batch;
+	}
+
+	private static void assertDemoEmbeddings(DemoEmbeddings demo, List<BatchEmbeddings.Text> batch) throws IOException {
+		for (int i = 0; i < TEXTS.length; i++) {
+			assertFalse(batch.get(i).failed);
+			assertArrayEquals(demo.computeEmbedding(TEXTS[i]), batch.get(i).vector, 1e-6f, TEXTS[i]);
+		}
+	}
+
+	@Test
+	public void sameAsDemoEmbeddings() throws IOException {
+		try (Directory dir = new ByteBuffersDirectory(); KnnVectorDict dict = dictionary(dir);
+				BatchEmbeddings embeddings = new BatchEmbeddings(dict, 0)) {
+			DemoEmbeddings demo = new DemoEmbeddings(dict);
+
+			List<BatchEmbeddings.Text> batch = batch(embeddings.getDimension());
+			embeddings.embed(batch);
+			assertDemoEmbeddings(demo, batch);
+
+			// The second batch takes the vectors of the terms from the cache
+			batch = batch(embeddings.getDimension());
+			embeddings.embed(batch);
+			assertDemoEmbeddings(demo, batch);
+		}
+	}
+
+	@Test
+	public void sameAsDemoEmbeddingsWithTheHashCache() throws IOException {
+		try (Directory dir = new ByteBuffersDirectory(); KnnVectorDict dict = dictionary(dir);
+				BatchEmbeddings embeddings = new BatchEmbeddings(dict, 16)) {
+			DemoEmbeddings demo = new DemoEmbeddings(dict);
+			String[] hashes = { "h0", "h1", "h2", "h3" };
+
+			List<BatchEmbeddings.Text> batch = batch(embeddings.getDimension(), hashes);
+			embeddings.embed(batch);
+			assertDemoEmbeddings(demo, batch);
+
+			// Same hashes, the vectors are copied from the cache
+			batch = batch(embeddings.getDimension(), hashes);
+			embeddings.embed(batch);
+			assertDemoEmbeddings(demo, batch);
+		}
+	}
+
+	@Test
+	public void filesAreReadWhenTheContentsAreNotInMemory() throws IOException {
+		try (Directory dir = new ByteBuffersDirectory(); KnnVectorDict dict = dictionary(dir);
+				BatchEmbeddings embeddings = new BatchEmbeddings(dict, 0)) {
+			DemoEmbeddings demo = new DemoEmbeddings(dict);
+			Path file = tempDir.resolve("doc.txt");
+			Files.write(file, TEXTS[1].getBytes(StandardCharsets.UTF_8));
+
+			BatchEmbeddings.Text fromFile = new BatchEmbeddings.Text(null, file, null, new float[embeddings.getDimension()]);
+			BatchEmbeddings.Text missing = new BatchEmbeddings.Text(null, tempDir.resolve("missing.txt"), null,
+					new float[embeddings.getDimension()]);
+			embeddings.embed(Arrays.asList(missing, fromFile));
+
+			assertTrue(missing.failed);
+			assertFalse(fromFile.failed);
+			assertArrayEquals(demo.computeEmbedding(TEXTS[1]), fromFile.vector, 1e-6f);
+		}
+	}
+}
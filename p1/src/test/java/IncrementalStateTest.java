@@ -0,0 +1,113 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Detection of the files added, changed, unchanged and deleted since the last crawl.
+ */
+public class IncrementalStateTest {
+
+	private static final Path A = Paths.get("docs", "a.txt");
+	private static final Path B = Paths.get("docs", "b.txt");
+	private static final Path C = Paths.get("docs", "c.txt");
+	private static final Path D = Paths.get("docs", "d.txt");
+
+	private static Document document(Path file, long modified, String hash) {
+		Document doc = new Document();
+		doc.add(new StringField("path", file.toString(), Field.Store.YES));
+		doc.add(new NumericDocValuesField("modified", modified));
+		doc.add(new StringField("contentsHash", hash, Field.Store.YES));
+		return doc;
+	}
+
+	private static IndexWriter writer(Directory dir) throws IOException {
+		return new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()));
+	}
+
+	private static Directory index() throws IOException {
+		Directory dir = new ByteBuffersDirectory();
+		try (IndexWriter writer = writer(dir)) {
+			writer.addDocument(document(A, 1000, "hash-a"));
+			writer.addDocument(document(B, 2000, "hash-b"));
+			writer.commit();
+			// C is updated in a second segment, only its live document counts
+			writer.addDocument(document(C, 3000, "old-hash-c"));
+			writer.commit();
+			writer.updateDocument(new Term("path", C.toString()), document(C, 3500, "hash-c"));
+		}
+		return dir;
+	}
+
+	@Test
+	public void newFilesAreNotFound() throws IOException {
+		try (Directory dir = index(); IncrementalState state = new IncrementalState(dir)) {
+			assertNull(state.find(D));
+		}
+		try (Directory dir = new ByteBuffersDirectory(); IncrementalState state = new IncrementalState(dir)) {
+			assertNull(state.find(A));
+		}
+	}
+
+	@Test
+	public void modifiedTimeAndHashOfIndexedFiles() throws IOException {
+		try (Directory dir = index(); IncrementalState state = new IncrementalState(dir)) {
+			IncrementalState.IndexedFile a = state.find(A);
+			assertNotNull(a);
+			assertEquals(1000, a.modified);
+			assertEquals("hash-a", state.storedHash(a));
+
+			IncrementalState.IndexedFile c = state.find(C);
+			assertNotNull(c);
+			assertEquals(3500, c.modified);
+			assertEquals("hash-c", state.storedHash(c));
+		}
+	}
+
+	@Test
+	public void missingFilesAreDeleted() throws IOException {
+		try (Directory dir = index()) {
+			try (IncrementalState state = new IncrementalState(dir); IndexWriter writer = writer(dir)) {
+				state.find(A);
+				state.find(C);
+				state.find(D);
+				state.deleteMissing(writer);
+				assertEquals(1, state.deleted.get());
+			}
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				IndexSearcher searcher = new IndexSearcher(reader);
+				assertEquals(2, reader.numDocs());
+				assertEquals(0, searcher.count(new TermQuery(new Term("path", B.toString()))));
+			}
+		}
+	}
+
+	@Test
+	public void nothingIsDeletedWithoutAnIndex() throws IOException {
+		try (Directory dir = new ByteBuffersDirectory()) {
+			try (IncrementalState state = new IncrementalState(dir); IndexWriter writer = writer(dir)) {
+				state.find(A);
+				state.deleteMissing(writer);
+				assertEquals(0, state.deleted.get());
+			}
+		}
+	}
+}
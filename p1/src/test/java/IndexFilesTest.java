@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Lines stored by IndexFiles, both for the files read into memory and for the big files read as a stream.
+ */
+public class IndexFilesTest {
+
+	private static IndexFiles.Settings settings(String onlyTopLines, String onlyBottomLines) {
+		Properties properties = new Properties();
+		if (onlyTopLines != null) {
+			properties.setProperty("onlyTopLines", onlyTopLines);
+		}
+		if (onlyBottomLines != null) {
+			properties.setProperty("onlyBottomLines", onlyBottomLines);
+		}
+		return new IndexFiles.Settings(properties, "localhost");
+	}
+
+	private static String lines(int numLines) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 1; i <= numLines; i++) {
+			text.append("line ").append(i).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Both versions of onlyLines must store the same text.
+	 */
+	private static void assertLines(String expected, IndexFiles.Settings settings, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		assertEquals(expected, IndexFiles.onlyLines(settings, ByteBuffer.wrap(bytes)), "in memory");
+		assertEquals(expected, IndexFiles.onlyLines(settings, new ByteArrayInputStream(bytes)), "as a stream");
+	}
+
+	@Test
+	public void firstBottomLinesThenLastTopLines() throws IOException {
+		assertLines("line 1 line 2 line 8 line 9 line 10 ", settings("3", "2"), lines(10));
+	}
+
+	@Test
+	public void overlappingLinesAreStoredOnce() throws IOException {
+		IndexFiles.Settings settings = settings("3", "2");
+		assertLines("line 1 line 2 line 3 line 4 ", settings, lines(4));
+		assertLines("line 1 line 2 line 3 line 4 line 5 ", settings, lines(5));
+		assertLines("line 1 line 2 line 4 line 5 line 6 ", settings, lines(6));
+	}
+
+	@Test
+	public void filesShorterThanTheLines() throws IOException {
+		IndexFiles.Settings settings = settings("12", "2");
+		assertLines("", settings, "");
+		assertLines("line 1 ", settings, lines(1));
+		assertLines("line 1 line 2 line 3 ", settings, lines(3));
+		assertLines("line 1 line 2 line 3 line 4 line 5 line 6 line 7 line 8 line 9 line 10 line 11 line 12 line 13 "
+				+ "line 14 ", settings, lines(14));
+	}
+
+	@Test
+	public void onlyOneOfTheProperties() throws IOException {
+		assertLines("line 4 line 5 ", settings("2", null), lines(5));
+		assertLines("line 1 line 2 ", settings(null, "2"), lines(5));
+		assertLines("", settings("0", "0"), lines(5));
+	}
+
+	@Test
+	public void allLinesWithoutTheProperties() throws IOException {
+		IndexFiles.Settings settings = settings(null, null);
+		assertLines("line 1\nline 2\nline 3", settings, lines(3));
+		assertLines("a\n\nb", settings, "a\r\n\r\nb");
+		assertLines("", settings, "");
+	}
+
+	@Test
+	public void lineBreaks() throws IOException {
+		IndexFiles.Settings settings = settings("1", "1");
+		assertLines("a c ", settings, "a\nb\nc");
+		assertLines("a c ", settings, "a\r\nb\r\nc\r\n");
+		assertLines("a  ", settings, "a\n\n");
+	}
+
+	@Test
+	public void multiByteCharacters() throws IOException {
+		// Accented and CJK characters, as escapes so the test doesn't depend on the encoding of the source
+		String text = "\u00edndice\nl\u00ednea\n\u00f1and\u00fa\n\u7d22\u5f15\n";
+		assertLines("\u00edndice \u00f1and\u00fa \u7d22\u5f15 ", settings("2", "1"), text);
+	}
+}
@@ -1,8 +1,18 @@
 import java.io.*;
 import java.nio.file.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import org.apache.lucene.demo.knn.DemoEmbeddings;
 import org.apache.lucene.demo.knn.KnnVectorDict;
+import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.LMDirichletSimilarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -16,13 +26,22 @@ import org.apache.lucene.util.IOUtils;
 public class IndexMedline implements AutoCloseable{
     private final DemoEmbeddings demoEmbeddings;
     private final KnnVectorDict vectorDict;
+    // Counters of the documents indexed
+    private final IndexingProgress progress;
+    // Fields of the documents
+    private final MedlineSchema schema;
 
     /**
      * This function initialize the KnnVectorDict
      * @param vectorDict Vector's new values
+     * @param progress   Counters of the documents indexed
+     * @param schema     Fields of the documents
      * @throws IOException
      */
-    private IndexMedline(KnnVectorDict vectorDict) throws IOException {
+    private IndexMedline(KnnVectorDict vectorDict, IndexingProgress progress, MedlineSchema schema)
+            throws IOException {
+        this.progress = progress;
+        this.schema = schema;
         if (vectorDict != null) {
             this.vectorDict = vectorDict;
             demoEmbeddings = new DemoEmbeddings(vectorDict);
@@ -33,98 +52,117 @@ public class IndexMedline implements AutoCloseable{
     }
 
     /**
-     * This function obtains the Id of the document
-     * @param linea Line with format ".I docId" where docId is the docId
-     * @return      The Id of the document
+     * This function recieves the file's path and parses it to obtain the documents. This documents are indexed.
+     * The file is split into records by this thread, and batches of records are parsed and indexed by a pool
+     * of threads that share the IndexWriter.
+     * @param Path       File's path in String format
+     * @param writer     Indexwriter that writes in the index path given by user
+     * @param path       File's path in Path format
+     * @param numThreads Number of threads that parse and index the records
+     * @param batchSize  Number of records indexed together
+     * @throws Exception If the file can't be read or a document can't be indexed
      */
-    private String obtenerId(String linea){
-        StringBuilder Id= new StringBuilder();
-        // Obtains the docId, coping the line without ".I "
-        for(int a=3; a<linea.length();a++){
-            Id.append(linea.charAt(a));
+    private void parsearArchivo (String Path, IndexWriter writer, Path path, int numThreads, int batchSize)
+            throws Exception {
+
+        // The queue is bounded, so the split waits for the indexing threads: when it is full the
+        // splitting thread indexes the record itself
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(4 * numThreads), new ThreadPoolExecutor.CallerRunsPolicy());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Consumer<List<ByteBuffer>> submit = records -> pool.execute(() -> {
+            try {
+                List<MedlineSplitter.Record> parsed = new ArrayList<>(records.size());
+                for (ByteBuffer record : records) {
+                    MedlineSplitter.Record parsedRecord = MedlineSplitter.parse(record);
+                    // Records without a valid id are skipped
+                    if (parsedRecord != null) {
+                        parsed.add(parsedRecord);
+                    }
+                }
+                indexDocs(writer, path, parsed);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        List<ByteBuffer> batch = new ArrayList<>(batchSize);
+        try {
+            MedlineSplitter.split(Paths.get(Path), record -> {
+                Throwable t = failure.get();
+                if (t != null) {
+                    throw new IOException("indexing failed", t);
+                }
+                batch.add(record);
+                if (batch.size() >= batchSize) {
+                    submit.accept(new ArrayList<>(batch));
+                    batch.clear();
+                }
+            });
+            if (!batch.isEmpty()) {
+                submit.accept(batch);
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new IOException("indexing failed", t);
         }
-        return Id.toString();
     }
 
     /**
-     * This function recieves the file's path and parses it to obtain the documents. This documents are indexed.
-     * @param Path      File's path in String format
-     * @param writer    Indexwriter that writes in the index path given by user
-     * @param path      File's path in Path format
-     * @throws IOException
+     * Function to create the document of a record
+     * @param record Id and contents of the record
+     * @return       The document, with the fields "DocIDMedline" and "Contents" of the schema
      */
-    private void parsearArchivo (String Path, IndexWriter writer,Path path) throws IOException {
-
-        // Variable initialization
-        File doc = new File(Path);
-        BufferedReader reader = new BufferedReader(new FileReader(doc));
-        String linea;
-        String docId="";
-        StringBuilder contents= new StringBuilder();
-
-        // Reading all lines
-        while ((linea = reader.readLine()) != null){
-
-            // If it's not a white line
-            if(!linea.equals("")) {
-
-                // If it begins with ".I", a new document starts and in this line we can obtain the id
-                if (linea.charAt(0) == '.' && linea.charAt(1) == 'I') {
-
-                    // Indexes the previous doc
-                    if (!docId.equals("")) {
-                        indexDoc(writer, path, contents.toString(), docId);
-                    }
-                    contents = new StringBuilder();
-                    docId = obtenerId(linea);
-
-                // If it begins with ".W", we jump this line, but the next lines will be the contents
-                } else if (linea.charAt(0) == '.' && linea.charAt(1) == 'W') {
+    private Document newDoc(MedlineSplitter.Record record) {
+        progress.bytesRead(record.contents.length());
+        return schema.newDoc(record.docId, record.contents);
+    }
 
-                // Until we have ".I", it will be part of contents
-                } else {
-                    contents.append(linea);
-                    contents.append("\n");
-                }
+    /**
+     * Function to index a batch of documents
+     * @param writer  Indexwriter that writes in the index path given by user
+     * @param file    Path of the file where the documents are
+     * @param records Records of the batch
+     * @throws IOException
+     */
+    void indexDocs(IndexWriter writer, Path file, List<MedlineSplitter.Record> records) throws IOException {
+        if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
+            // New index, so we just add the documents (no old document can be there), all with one call:
+            List<Document> docs = new ArrayList<>(records.size());
+            for (MedlineSplitter.Record record : records) {
+                docs.add(newDoc(record));
+                progress.documentIndexed("adding", file);
+            }
+            writer.addDocuments(docs);
+        } else {
+            // Existing index (an old copy of this document may have been indexed) so
+            // we use updateDocument instead to replace the old one matching the exact
+            // id, if present:
+            for (MedlineSplitter.Record record : records) {
+                Document doc = newDoc(record);
+                progress.documentIndexed("updating", file);
+                writer.updateDocument(new Term(MedlineSchema.ID_FIELD, record.docId), doc);
             }
         }
-        // Indexing last document
-        indexDoc(writer, path, contents.toString(), docId);
     }
 
     /**
-     * Function to index one document
-     * @param writer            Indexwriter that writes in the index path given by user
-     * @param file              Path of the file where the document is
-     * @param contentsStored    String that will be stored in the field "Contents"
-     * @param docId             String that will be stored in the field "DocIDMedline"
-     * @throws IOException
+     * @param dir Directory of an existing index
+     * @return true if all its segments are sorted like the documents indexed now
+     * @throws IOException If the index can't be read
      */
-    void indexDoc(IndexWriter writer, Path file, String contentsStored, String docId) throws IOException {
-        try (InputStream stream = Files.newInputStream(file)) {
-            // make a new, empty document
-            Document doc = new Document();
-
-            final FieldType fieldType = new FieldType(TextField.TYPE_STORED);
-            fieldType.setStored(true);
-            fieldType.setStoreTermVectors(true);
-
-            //Add the contents of the file to a field named "contentsStored".
-            doc.add(new StoredField("DocIDMedline", docId, fieldType));
-            doc.add(new StoredField("Contents", contentsStored, fieldType));
-
-            if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
-                // New index, so we just add the document (no old document can be there):
-                System.out.println("adding " + file);
-                writer.addDocument(doc);
-            } else {
-                // Existing index (an old copy of this document may have been indexed) so
-                // we use updateDocument instead to replace the old one matching the exact
-                // path, if present:
-                System.out.println("updating " + file);
-                writer.updateDocument(new Term("path", file.toString()), doc);
+    private static boolean sortedIndex(Directory dir) throws IOException {
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            for (LeafReaderContext context : reader.leaves()) {
+                if (!MedlineSchema.INDEX_SORT.equals(context.reader().getMetaData().getSort())) {
+                    return false;
+                }
             }
         }
+        return true;
     }
 
     /**
@@ -137,11 +175,22 @@ public class IndexMedline implements AutoCloseable{
 
         // Variable initialization
         String usage = "java org.apache.lucene.IndexMedline"
-                + " [-index INDEX_PATH] [-docs DOCS_PATH] [-openmode OPENMODE] [-indexingmodel INDEXING_MODEL]\n\n"
+                + " [-index INDEX_PATH] [-docs DOCS_PATH] [-openmode OPENMODE] [-indexingmodel INDEXING_MODEL]"
+                + " [-numThreads N] [-batchSize B] [-verbose] [-progressInterval SECONDS]\n\n"
                 + "This indexes the documents in DOCS_PATH, creating a Lucene index"
                 + "in INDEX_PATH that can be searched with SearchFiles\n"
                 + "It can be selected creating, appending or both in OPENMODE"
-                + "Indexing model possible values are jm lambda | tfidf";
+                + "Indexing model possible values are jm lambda | tfidf | bm25 | dirichlet | all. Every model encodes the"
+                + " same norms (the length of the fields), so the index can be searched with any of them; all makes it"
+                + " explicit\n"
+                + "The records are parsed and indexed by N threads (the number of processors by default), in batches of B"
+                + " records (256 by default). Records already indexed are replaced by their DocIDMedline\n"
+                + "The documents of each segment are sorted by DocIDMedline, so hits with the same score are ranked in"
+                + " the order of MED.ALL inside a segment. The threads flush their segments in any order: use"
+                + " -forceMerge 1 for the same order in the whole index\n"
+                + "Progress is printed every SECONDS (10 by default); with -verbose every document indexed is also printed\n"
+                + MedlineSchema.usage() + "\n"
+                + WriterTuning.usage();
 
         String index = null;
         String docs = null;
@@ -149,6 +198,15 @@ public class IndexMedline implements AutoCloseable{
         boolean create = false;
         boolean jm = false;
         float lambda = 0;
+        String model = "tfidf";
+        boolean verbose = false;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        int batchSize = 256;
+        int progressInterval = 10;
+        // RAM buffer, merges and compound files of the writer
+        WriterTuning tuning = new WriterTuning();
+        // Index options, term vectors and storage of the fields
+        MedlineSchema.Builder schemaOptions = new MedlineSchema.Builder();
 
         // Obtain users parameters
         for (int i = 0; i < args.length; i++) {
@@ -177,19 +235,42 @@ public class IndexMedline implements AutoCloseable{
                     }
                     break;
                 case "-indexingmodel":
-                    switch (args[++i]) {
+                    model = args[++i];
+                    switch (model) {
                         case "jm":
                             jm = true;
                             lambda = Float.parseFloat(args[++i]);
                             break;
                         case "tfidf":
+                        case "bm25":
+                        case "dirichlet":
+                        case "all":
                             break;
                         default:
                             throw new IllegalArgumentException("unknow parameter " + args[i]);
                     }
                     break;
+                case "-numThreads":
+                    numThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-batchSize":
+                    batchSize = Integer.parseInt(args[++i]);
+                    break;
+                case "-verbose":
+                    verbose = true;
+                    break;
+                case "-progressInterval":
+                    progressInterval = Integer.parseInt(args[++i]);
+                    break;
                 default:
-                    throw new IllegalArgumentException("unknown parameter " + args[i]);
+                    int last = schemaOptions.parse(args, i);
+                    if (last < 0) {
+                        last = tuning.parse(args, i);
+                    }
+                    if (last < 0) {
+                        throw new IllegalArgumentException("unknown parameter " + args[i]);
+                    }
+                    i = last;
             }
         }
 
@@ -221,6 +302,9 @@ public class IndexMedline implements AutoCloseable{
             }
 
 
+            // The fields are built once every option is known, and shared by the indexing threads
+            MedlineSchema schema = schemaOptions.build();
+
             Directory dir = FSDirectory.open(Paths.get(index));
             Analyzer analyzer = new StandardAnalyzer();
             IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
@@ -235,19 +319,47 @@ public class IndexMedline implements AutoCloseable{
                 // Add new documents to an existing index:
                 iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
             }
+            // Lucene can't change how a field is indexed, or sort an index that was written without the sort
+            if (!create && DirectoryReader.indexExists(dir)) {
+                String changedField = schema.changedField(dir);
+                if (changedField != null) {
+                    System.err.println("The field " + changedField + " of the index in '" + index + "' is indexed"
+                            + " in another way, rebuild it with -openmode create");
+                    System.exit(1);
+                }
+                if (!sortedIndex(dir)) {
+                    System.err.println("The index in '" + index + "' is not sorted by " + MedlineSchema.ID_FIELD
+                            + ", rebuild it with -openmode create");
+                    System.exit(1);
+                }
+            }
 
-            // Jelinek-Mercer smoothing or TFIDF can be chosen to set Similarity
+            // Jelinek-Mercer smoothing, TFIDF, BM25 or Dirichlet can be chosen to set Similarity. At index time
+            // it only computes the norms, and all of them encode the same length, so one index serves every model
             if (jm) {
                 iwc.setSimilarity(new LMJelinekMercerSimilarity(lambda));
+            } else if (model.equals("bm25") || model.equals("all")) {
+                iwc.setSimilarity(new BM25Similarity());
+            } else if (model.equals("dirichlet")) {
+                iwc.setSimilarity(new LMDirichletSimilarity());
             } else {
 
                 iwc.setSimilarity(new ClassicSimilarity());
             }
+            // The batches are indexed in parallel, the sort keeps the documents of each segment in the order of the file
+            iwc.setIndexSort(MedlineSchema.INDEX_SORT);
+            tuning.apply(iwc);
 
             // Create indexWriter and call to the function that parses the files and indexes the documents
-            try (IndexWriter writer = new IndexWriter(dir, iwc); IndexMedline indexMedline = new IndexMedline(vectorDictInstance)) {
-                indexMedline.parsearArchivo(docs, writer, docDir);
+            IndexingProgress progress = new IndexingProgress(verbose, progressInterval);
+            try (IndexWriter writer = new IndexWriter(dir, iwc); IndexMedline indexMedline = new IndexMedline(vectorDictInstance, progress, schema)) {
+                indexMedline.parsearArchivo(docs, writer, docDir, numThreads, batchSize);
+                tuning.forceMerge(writer);
+            } finally {
+                progress.stop();
             }
+            System.out.println(tuning.report());
+            System.out.println(schema.report(dir));
 
         } catch (Exception e) {
             e.printStackTrace();
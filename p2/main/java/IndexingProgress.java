@@ -0,0 +1,120 @@
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Progress of an indexing job. The indexing threads only increase counters, that are spread across
+ * threads (LongAdder) so they don't compete with each other, and a background thread prints a summary
+ * line every interval. The line of every file is only printed in verbose mode.
+ *
+ * <p>
+ * p1 and p2 have the same copy of this class: a change in one of them goes in both.
+ */
+public class IndexingProgress {
+    private final boolean verbose;
+    private final long start = System.nanoTime();
+    private final LongAdder docs = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final ScheduledExecutorService reporter;
+
+    // Extra information added to each line, like the size of the queues
+    private volatile Supplier<String> status;
+
+    // Values of the previous line, to compute the rates of the last interval
+    private long lastTime = start;
+    private long lastDocs;
+    private long lastBytes;
+
+    /**
+     * @param verbose         If true, a line is printed for every file indexed
+     * @param intervalSeconds Seconds between summary lines, 0 to print only the final one
+     */
+    public IndexingProgress(boolean verbose, int intervalSeconds) {
+        this.verbose = verbose;
+        if (intervalSeconds > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(() -> System.out.println(summary()), intervalSeconds, intervalSeconds,
+                    TimeUnit.SECONDS);
+        } else {
+            reporter = null;
+        }
+    }
+
+    /**
+     * @param status Extra information for the summary lines
+     */
+    public void setStatus(Supplier<String> status) {
+        this.status = status;
+    }
+
+    /**
+     * Counts the bytes read from a file.
+     */
+    public void bytesRead(long size) {
+        bytes.add(size);
+    }
+
+    /**
+     * Counts a document sent to the index.
+     *
+     * @param action What has been done with the document, like "adding" or "updating"
+     * @param file   File of the document
+     */
+    public void documentIndexed(String action, Path file) {
+        docs.increment();
+        if (verbose) {
+            System.out.println(action + " " + file);
+        }
+    }
+
+    /**
+     * @return Number of documents sent to the index
+     */
+    public long getDocs() {
+        return docs.sum();
+    }
+
+    /**
+     * @return A line with the documents and bytes indexed and their rates, overall and in the last interval
+     */
+    public synchronized String summary() {
+        long now = System.nanoTime();
+        long currentDocs = docs.sum();
+        long currentBytes = bytes.sum();
+        double seconds = Math.max(1e-9, (now - start) / 1e9);
+        double intervalSeconds = Math.max(1e-9, (now - lastTime) / 1e9);
+
+        String line = String.format(Locale.ROOT,
+                "%d docs, %.1f MB in %.1f s (%.1f docs/s, %.2f MB/s; last %.1f s: %.1f docs/s, %.2f MB/s)",
+                currentDocs, currentBytes / 1048576.0, seconds, currentDocs / seconds,
+                currentBytes / 1048576.0 / seconds, intervalSeconds, (currentDocs - lastDocs) / intervalSeconds,
+                (currentBytes - lastBytes) / 1048576.0 / intervalSeconds);
+        Supplier<String> currentStatus = status;
+        if (currentStatus != null) {
+            line += ", " + currentStatus.get();
+        }
+
+        lastTime = now;
+        lastDocs = currentDocs;
+        lastBytes = currentBytes;
+        return line;
+    }
+
+    /**
+     * Stops the summary lines and prints the final one.
+     */
+    public void stop() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        System.out.println(summary());
+    }
+}
@@ -0,0 +1,477 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Evaluates the MEDLINE queries (MED.QRY) against an index with the judgments of MED.REL, computing
+ * P@n, Recall@n and AP@n of each query.
+ *
+ * <p>
+ * The index, the DocIDMedline of its docs, the queries and the judgments are read once when the
+ * evaluator is created, and every call to {@link #evaluate} only searches, so a sweep of models and
+ * parameters runs in one JVM with one reader. The queries of an evaluation run in a pool of threads.
+ * Each evaluation has its own searcher and parser, so several can run at the same time.
+ */
+public class MedlineEvaluator implements Closeable {
+
+    /**
+     * Metrics of the queries of an evaluation, in the order of MED.QRY.
+     */
+    public static final class Result {
+        final int[] queryIds;
+        final double[] pn;
+        final double[] recall;
+        final double[] apn;
+        // Top docs of each query, as they are shown; null if they were not asked for
+        final String[] text;
+
+        Result(int size, boolean withText) {
+            queryIds = new int[size];
+            pn = new double[size];
+            recall = new double[size];
+            apn = new double[size];
+            text = withText ? new String[size] : null;
+        }
+
+        /**
+         * @return Number of queries
+         */
+        public int size() {
+            return queryIds.length;
+        }
+
+        /**
+         * @param metric P, R or MAP
+         * @return Values of the metric for each query
+         */
+        public double[] metric(String metric) {
+            switch (metric) {
+                case "P":
+                    return pn;
+                case "R":
+                    return recall;
+                default:
+                    return apn;
+            }
+        }
+
+        /**
+         * @param values Values of a metric for each query
+         * @return Average of the values
+         */
+        public static double mean(double[] values) {
+            double sum = 0;
+            for (double value : values) {
+                sum += value;
+            }
+            return sum / values.length;
+        }
+    }
+
+    /** Id and text of a query of MED.QRY */
+    private static final class MedlineQuery {
+        final String id;
+        final String contents;
+
+        MedlineQuery(String id, String contents) {
+            this.id = id;
+            this.contents = contents;
+        }
+    }
+
+    // Stored fields loaded for each hit
+    private static final Set<String> ID = Collections.singleton("DocIDMedline");
+    private static final Set<String> CONTENTS = Collections.singleton("Contents");
+
+    private final IndexReader indexReader;
+    // DocIDMedline of each Lucene doc of the reader, so the hits don't need their stored fields
+    private final int[] medlineIds;
+    // Relevant docs of each query, sorted
+    private final Map<Integer, int[]> relevances;
+    private final List<MedlineQuery> queries;
+    private final ExecutorService queryPool;
+    private final ExecutorService searchPool;
+    // Queries submitted to the pool before the oldest one is waited for
+    private final int maxPending;
+
+    /**
+     * @param index         Path of the index
+     * @param medDir        Folder with MED.QRY and MED.REL
+     * @param threads       Threads that run the queries
+     * @param searchThreads Threads that search the segments of one query, 0 to not split them
+     * @throws IOException If the index or the files of the collection can't be read
+     */
+    public MedlineEvaluator(Path index, Path medDir, int threads, int searchThreads) throws IOException {
+        queries = parsearQueries(medDir.resolve("MED.QRY"));
+        relevances = parsearRelevancias(medDir.resolve("MED.REL"));
+        indexReader = DirectoryReader.open(FSDirectory.open(index));
+        try {
+            medlineIds = leerIds(indexReader);
+        } catch (IOException | RuntimeException e) {
+            indexReader.close();
+            throw e;
+        }
+        queryPool = Executors.newFixedThreadPool(threads);
+        maxPending = 4 * threads;
+        searchPool = searchThreads > 0 ? Executors.newFixedThreadPool(searchThreads) : null;
+    }
+
+    /**
+     * Evaluates the queries with ids between firstQuery and lastQuery, without their top docs.
+     *
+     * @param similarity Model of the search
+     * @param firstQuery First query id
+     * @param lastQuery  Last query id
+     * @param cut        Number of docs used to calculate the metrics
+     * @return Metrics of the queries
+     * @throws IOException If the search fails
+     */
+    public Result evaluate(Similarity similarity, int firstQuery, int lastQuery, int cut) throws IOException {
+        return evaluate(similarity, firstQuery, lastQuery, cut, -1);
+    }
+
+    /**
+     * Evaluates the queries with ids between firstQuery and lastQuery.
+     *
+     * @param similarity Model of the search
+     * @param firstQuery First query id
+     * @param lastQuery  Last query id
+     * @param cut        Number of docs used to calculate the metrics
+     * @param top        Number of top docs shown in the text of each query, -1 to not build the text
+     * @return Metrics and, if top is not -1, text of the queries
+     * @throws IOException If the search fails
+     */
+    public Result evaluate(Similarity similarity, int firstQuery, int lastQuery, int cut, int top)
+            throws IOException {
+        return evaluate(similarity, firstQuery, lastQuery, cut, top, null);
+    }
+
+    /**
+     * Evaluates the queries with ids between firstQuery and lastQuery. If there is a listener, each
+     * query is handed to it as soon as it and the previous ones are done, and its text and hits are not
+     * kept: only a few queries are in memory at a time, whatever the number of queries.
+     *
+     * @param similarity Model of the search
+     * @param firstQuery First query id
+     * @param lastQuery  Last query id
+     * @param cut        Number of docs used to calculate the metrics
+     * @param top        Number of top docs shown in the text of each query, -1 to not build the text
+     * @param listener   Receiver of the queries in the order of MED.QRY, or null
+     * @return Metrics of the queries and, without listener and if top is not -1, their text
+     * @throws IOException If the search or the listener fail
+     */
+    public Result evaluate(Similarity similarity, int firstQuery, int lastQuery, int cut, int top,
+                           QueryListener listener) throws IOException {
+        IndexSearcher searcher = new IndexSearcher(indexReader, searchPool);
+        searcher.setSimilarity(similarity);
+        // The QueryParser can't be shared, so each evaluation has its own and parses in this thread
+        QueryParser queryParser = new QueryParser("Contents", new StandardAnalyzer());
+
+        int size = 0;
+        for (MedlineQuery medlineQuery : queries) {
+            int id = Integer.parseInt(medlineQuery.id);
+            if (id >= firstQuery && id <= lastQuery) {
+                size++;
+            }
+        }
+        Result result = new Result(size, top >= 0 && listener == null);
+
+        // Queries submitted and not yet added to the result, in order
+        Deque<Future<QueryResult>> pending = new ArrayDeque<>();
+        int done = 0;
+        try {
+            for (MedlineQuery medlineQuery : queries) {
+                int id = Integer.parseInt(medlineQuery.id);
+                if (id < firstQuery || id > lastQuery) {
+                    continue;
+                }
+                //The content must be in lowercase
+                Query query = queryParser.parse(QueryParser.escape(medlineQuery.contents));
+                pending.add(queryPool.submit(() -> queryExe(searcher, query, medlineQuery, cut, top)));
+                if (pending.size() >= maxPending) {
+                    collect(pending.poll(), result, done++, listener);
+                }
+            }
+            while (!pending.isEmpty()) {
+                collect(pending.poll(), result, done++, listener);
+            }
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("the query can't be parsed", e);
+        } finally {
+            pending.forEach(future -> future.cancel(false));
+        }
+        return result;
+    }
+
+    /**
+     * Waits for a query and adds it to the result, or hands it to the listener
+     */
+    private static void collect(Future<QueryResult> future, Result result, int i, QueryListener listener)
+            throws IOException {
+        QueryResult queryResult;
+        try {
+            queryResult = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("evaluation interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        result.queryIds[i] = queryResult.id;
+        result.pn[i] = queryResult.pn;
+        result.recall[i] = queryResult.recall;
+        result.apn[i] = queryResult.apn;
+        if (listener != null) {
+            listener.query(queryResult);
+        } else if (result.text != null) {
+            result.text[i] = queryResult.console.toString();
+        }
+    }
+
+    /**
+     * Receives the queries of an evaluation as they finish.
+     */
+    public interface QueryListener {
+        /**
+         * @param query Metrics, text and hits of a query
+         * @throws IOException If the query can't be written; the evaluation stops
+         */
+        void query(QueryResult query) throws IOException;
+    }
+
+    /** Output, hits and metrics of one query, computed by a thread of the pool */
+    public static final class QueryResult {
+        final int id;
+        // Text of the query and its top docs, null if it was not asked for
+        final StringBuilder console;
+        // DocIDMedline and score of the hits, by rank
+        int[] docIds;
+        float[] scores;
+        double pn;
+        double recall;
+        double apn;
+
+        QueryResult(int id, boolean withText) {
+            this.id = id;
+            this.console = withText ? new StringBuilder() : null;
+        }
+    }
+
+    /**
+     * Executes the query and obtains the top docs we were looking for. It can run in any thread
+     */
+    private QueryResult queryExe(IndexSearcher searcher, Query query, MedlineQuery medlineQuery, int cut, int top)
+            throws IOException {
+        int id = Integer.parseInt(medlineQuery.id);
+        QueryResult result = new QueryResult(id, top >= 0);
+        StringBuilder console = result.console;
+        if (console != null) {
+            console.append("QUERY ").append(medlineQuery.id).append(":").append("\n");
+            console.append(medlineQuery.contents).append("\n");
+        }
+
+        //Obtain the relevance docs for the query
+        int[] relevantDocs = relevances.get(id);
+
+        //In order, we only calculate once the topDocs we obtain the maximum of both values
+        int max = Math.max(Math.max(top, cut), 1);
+        int relevants = 0;
+        double sumPrecision = 0;
+
+        //Obtain the topDocs for the query order by the score
+        TopDocs topDocs = searcher.search(query, max);
+        result.docIds = new int[topDocs.scoreDocs.length];
+        result.scores = new float[topDocs.scoreDocs.length];
+
+        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+            ScoreDoc scoreDoc = topDocs.scoreDocs[i];
+            int docID = medlineIds[scoreDoc.doc];
+            result.docIds[i] = docID;
+            result.scores[i] = scoreDoc.score;
+            boolean shown = console != null && i < top;
+
+            //If we want that doc to be shown, we append the values of the indexed field and its score
+            //Only these docs load their stored Contents
+            if (shown) {
+                console.append("DocIDMedline: ").append(docID).append("\n");
+                console.append("Score: ").append(scoreDoc.score).append("\n").append("\n");
+                console.append("Contents: ").append(indexReader.document(scoreDoc.doc, CONTENTS).get("Contents")).append("\n");
+            }
+            //Searches if it's relevant the doc for the query
+            if (isRelevant(relevantDocs, docID)) {
+                if (i < cut) {
+                    relevants += 1;
+                    //Calculates the precision for each relevant doc
+                    sumPrecision += (double) relevants / (i + 1);
+                }
+                if (shown) {
+                    console.append("Es relevante" + "\n" + "\n");
+                }
+            } else if (shown) {
+                console.append("No es relevante" + "\n" + "\n");
+            }
+        }
+
+        //Calculates the metrics for each query
+        result.pn = (double) relevants / cut;
+        result.recall = (double) relevants / relevantDocs.length;
+        result.apn = sumPrecision / relevantDocs.length;
+
+        if (console != null) {
+            console.append("P@n: ").append(result.pn).append("\n");
+            console.append("Recall@n: ").append(result.recall).append("\n");
+            console.append("AP@n: ").append(result.apn).append("\n");
+            console.append("-------------------------------").append("\n");
+        }
+        return result;
+    }
+
+    /**
+     * Answers if the doc is relevant for that query, with a binary search
+     */
+    private static boolean isRelevant(int[] relevantDocs, int docID) {
+        return relevantDocs != null && Arrays.binarySearch(relevantDocs, docID) >= 0;
+    }
+
+    /**
+     * Reads the ids from the numeric doc values of DocIDMedline. Indexes built before they were added
+     * only have the stored field, that is read instead
+     *
+     * @param indexReader refers to the index
+     * @return the DocIDMedline of each doc, by its Lucene doc id
+     */
+    private static int[] leerIds(IndexReader indexReader) throws IOException {
+        int[] ids = new int[indexReader.maxDoc()];
+        for (LeafReaderContext context : indexReader.leaves()) {
+            LeafReader leaf = context.reader();
+            NumericDocValues values = leaf.getNumericDocValues("DocIDMedline");
+            for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+                if (values != null && values.advanceExact(doc)) {
+                    ids[context.docBase + doc] = (int) values.longValue();
+                } else {
+                    ids[context.docBase + doc] = Integer.parseInt(leaf.document(doc, ID).get("DocIDMedline").trim());
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the queries of MED.QRY, in order. The lines of each query after its ".I" line are its
+     * contents, except the ".W" line
+     */
+    private static List<MedlineQuery> parsearQueries(Path file) throws IOException {
+        List<MedlineQuery> parsed = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file.toFile()))) {
+            String linea;
+            String queryID = "";
+            StringBuilder contents = new StringBuilder();
+            while ((linea = reader.readLine()) != null) {
+                if (linea.isEmpty()) {
+                    continue;
+                }
+                if (linea.startsWith(".I")) {
+                    if (!queryID.isEmpty()) {
+                        parsed.add(new MedlineQuery(queryID, contents.toString()));
+                    }
+                    contents = new StringBuilder();
+                    queryID = linea.substring(3);
+                } else if (!linea.startsWith(".W")) {
+                    contents.append(linea);
+                    contents.append("\n");
+                }
+            }
+            if (!queryID.isEmpty()) {
+                parsed.add(new MedlineQuery(queryID, contents.toString()));
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Obtains the relevant docs for each query from the File "MED.REL"
+     *
+     * @return Map with the queryID, and the sorted relevant docs for that query
+     */
+    private static Map<Integer, int[]> parsearRelevancias(Path file) throws IOException {
+        Map<Integer, int[]> parsed = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file.toFile()))) {
+            String linea;
+            int queryID = -1;
+            //Docs of the current query, in a growing array
+            int[] docs = new int[16];
+            int size = 0;
+
+            while ((linea = reader.readLine()) != null) {
+                if (!linea.isEmpty()) {
+                    String[] split = linea.split(" ");
+                    int id = Integer.parseInt(split[0]);
+                    if (id != queryID) {
+                        if (queryID != -1) {
+                            parsed.put(queryID, sortedCopy(docs, size));
+                        }
+                        queryID = id;
+                        size = 0;
+                    }
+                    if (size == docs.length) {
+                        docs = Arrays.copyOf(docs, size * 2);
+                    }
+                    docs[size++] = Integer.parseInt(split[2]);
+                }
+            }
+            if (queryID != -1) {
+                parsed.put(queryID, sortedCopy(docs, size));
+            }
+        }
+        return parsed;
+    }
+
+    private static int[] sortedCopy(int[] docs, int size) {
+        int[] copy = Arrays.copyOf(docs, size);
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    @Override
+    public void close() throws IOException {
+        queryPool.shutdown();
+        if (searchPool != null) {
+            searchPool.shutdown();
+        }
+        indexReader.close();
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.util.Locale;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Layout of the fields of the MEDLINE index. DocIDMedline is always a stored keyword, to update and find
+ * a document by its id, and a numeric doc value, to read the ids of the hits without loading the stored
+ * fields. What is kept of Contents is chosen with flags, so the size of the index and the speed of the
+ * searches of each layout can be compared:
+ * <ul>
+ * <li>-contentsIndex docs|freqs|positions: postings of the terms (positions by default, needed by
+ * phrase queries; freqs is enough for the scores of the models)</li>
+ * <li>-termVectors true|false: term vectors of each document (true by default)</li>
+ * <li>-storeContents true|false: stored text, shown in the results of the searches (true by default)</li>
+ * </ul>
+ */
+public class MedlineSchema {
+    static final String ID_FIELD = "DocIDMedline";
+    static final String CONTENTS_FIELD = "Contents";
+    // The documents of each segment are sorted by their ids, the order of MED.ALL, whatever the thread that
+    // indexed them. Hits with the same score are ranked by docID, so ties follow MED.ALL inside a segment
+    static final Sort INDEX_SORT = new Sort(new SortField(ID_FIELD, SortField.Type.LONG));
+
+    private final IndexOptions contentsIndex;
+    private final boolean termVectors;
+    private final boolean storeContents;
+    // Type of Contents, frozen and shared by the documents of every indexing thread
+    private final FieldType contentsType;
+
+    /**
+     * Options of the schema read from the command line. The schema is built once all of them are known.
+     */
+    static class Builder {
+        private IndexOptions contentsIndex = IndexOptions.DOCS_AND_FREQS_AND_POSITIONS;
+        private boolean termVectors = true;
+        private boolean storeContents = true;
+
+        /**
+         * Reads an option of the command line.
+         *
+         * @param args Arguments of the program
+         * @param i    Position of the flag
+         * @return Position of the last argument used, or -1 if args[i] is not an option of the schema
+         */
+        int parse(String[] args, int i) {
+            switch (args[i]) {
+                case "-contentsIndex":
+                    switch (args[++i]) {
+                        case "docs":
+                            contentsIndex = IndexOptions.DOCS;
+                            break;
+                        case "freqs":
+                            contentsIndex = IndexOptions.DOCS_AND_FREQS;
+                            break;
+                        case "positions":
+                            contentsIndex = IndexOptions.DOCS_AND_FREQS_AND_POSITIONS;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown parameter " + args[i]);
+                    }
+                    return i;
+                case "-termVectors":
+                    termVectors = Boolean.parseBoolean(args[++i]);
+                    return i;
+                case "-storeContents":
+                    storeContents = Boolean.parseBoolean(args[++i]);
+                    return i;
+                default:
+                    return -1;
+            }
+        }
+
+        /**
+         * @return The schema with the options read
+         */
+        MedlineSchema build() {
+            return new MedlineSchema(contentsIndex, termVectors, storeContents);
+        }
+    }
+
+    private MedlineSchema(IndexOptions contentsIndex, boolean termVectors, boolean storeContents) {
+        this.contentsIndex = contentsIndex;
+        this.termVectors = termVectors;
+        this.storeContents = storeContents;
+        FieldType type = new FieldType();
+        type.setTokenized(true);
+        type.setIndexOptions(contentsIndex);
+        type.setStoreTermVectors(termVectors);
+        type.setStored(storeContents);
+        type.freeze();
+        this.contentsType = type;
+    }
+
+    /**
+     * @return Description of the options for the usage of the programs
+     */
+    static String usage() {
+        return "Fields of the index: [-contentsIndex docs|freqs|positions] [-termVectors true|false]"
+                + " [-storeContents true|false]";
+    }
+
+    /**
+     * @param docId    Id of the record, already trimmed
+     * @param contents Contents of the record
+     * @return The document of the record
+     */
+    Document newDoc(String docId, String contents) {
+        Document doc = new Document();
+        doc.add(new StringField(ID_FIELD, docId, Field.Store.YES));
+        doc.add(new NumericDocValuesField(ID_FIELD, Long.parseLong(docId)));
+        doc.add(new Field(CONTENTS_FIELD, contents, contentsType));
+        return doc;
+    }
+
+    /**
+     * Compares the fields of an existing index with this layout. Lucene doesn't allow changing how a field
+     * is indexed, so documents can't be added to indexes built before DocIDMedline was a keyword with a doc
+     * value, or with other options for Contents.
+     *
+     * @param dir Directory of an existing index
+     * @return The first field indexed in another way, or null if the documents of this layout can be added
+     * @throws IOException If the index can't be read
+     */
+    String changedField(Directory dir) throws IOException {
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            FieldInfos fieldInfos = FieldInfos.getMergedFieldInfos(reader);
+            FieldInfo id = fieldInfos.fieldInfo(ID_FIELD);
+            if (id != null && (id.getIndexOptions() != IndexOptions.DOCS
+                    || id.getDocValuesType() != DocValuesType.NUMERIC)) {
+                return ID_FIELD;
+            }
+            FieldInfo contents = fieldInfos.fieldInfo(CONTENTS_FIELD);
+            if (contents != null && (contents.getIndexOptions() != contentsType.indexOptions()
+                    || contents.hasVectors() != contentsType.storeTermVectors())) {
+                return CONTENTS_FIELD;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param dir Directory of the index, once it is committed
+     * @return The layout of the fields and the size of the index
+     * @throws IOException If the files of the index can't be read
+     */
+    String report(Directory dir) throws IOException {
+        long bytes = 0;
+        for (String file : dir.listAll()) {
+            bytes += dir.fileLength(file);
+        }
+        return String.format(Locale.ROOT, "Contents: index %s, term vectors %b, stored %b; index size: %.2f MB",
+                contentsIndex, termVectors, storeContents, bytes / (1024.0 * 1024.0));
+    }
+}
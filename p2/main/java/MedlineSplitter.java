@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Splits a MEDLINE collection file (MED.ALL) into its records without decoding it.
+ *
+ * <p>
+ * The file is mapped in memory by windows and scanned byte by byte looking for the lines that start
+ * with ".I", so the thread that splits the file only finds where each record starts and ends. The
+ * records are handed over as buffers over the mapped file, and the text of each one is decoded by
+ * {@link #parse(ByteBuffer)} in the thread that indexes it.
+ */
+public class MedlineSplitter {
+
+    /**
+     * Receives the records of the file, in order.
+     */
+    public interface RecordHandler {
+        /**
+         * @param record Bytes of a record, from its ".I" line to the start of the next record
+         * @throws Exception If the record can't be handled; the split stops
+         */
+        void record(ByteBuffer record) throws Exception;
+    }
+
+    /**
+     * Id and text of a record.
+     */
+    public static final class Record {
+        final String docId;
+        final String contents;
+
+        Record(String docId, String contents) {
+            this.docId = docId;
+            this.contents = contents;
+        }
+    }
+
+    // Size of the mapped windows. A record never crosses a window: the next one starts at the record
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * Splits a file into its records.
+     *
+     * @param file    MEDLINE file
+     * @param handler Receiver of the records
+     * @throws Exception If the file can't be read or the handler fails
+     */
+    public static void split(Path file, RecordHandler handler) throws Exception {
+        split(file, WINDOW_SIZE, handler);
+    }
+
+    /**
+     * Same as {@link #split(Path, RecordHandler)} with windows of a given size.
+     *
+     * @param maxWindowSize Size of the mapped windows. A window must hold the biggest record and the
+     *                      ".I" of the next one
+     */
+    static void split(Path file, long maxWindowSize, RecordHandler handler) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long windowStart = 0;
+            while (windowStart < size) {
+                long windowSize = Math.min(maxWindowSize, size - windowStart);
+                boolean lastWindow = windowStart + windowSize == size;
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+                int recordStart = -1;
+                int limit = window.limit();
+                // Only the starts of lines are checked
+                for (int pos = 0; pos < limit; pos = nextLine(window, pos)) {
+                    if (isMarker(window, pos, (byte) 'I')) {
+                        if (recordStart >= 0) {
+                            handler.record(slice(window, recordStart, pos));
+                        }
+                        recordStart = pos;
+                    }
+                }
+                if (recordStart < 0) {
+                    if (!lastWindow) {
+                        throw new IOException("record bigger than " + maxWindowSize + " bytes in " + file);
+                    }
+                    return;
+                }
+                if (lastWindow) {
+                    handler.record(slice(window, recordStart, limit));
+                    return;
+                }
+                if (recordStart == 0) {
+                    throw new IOException("record bigger than " + maxWindowSize + " bytes in " + file);
+                }
+                // The last record may continue in the next window
+                windowStart += recordStart;
+            }
+        }
+    }
+
+    /**
+     * Decodes a record. The id is the rest of its ".I" line, trimmed, and the contents are its non-empty
+     * lines, except the ".W" line, each one followed by '\n'.
+     *
+     * @param record Bytes of a record, as given by {@link #split(Path, RecordHandler)}
+     * @return The id and contents of the record, or null if its id is not a number. The record is then
+     *         skipped with a warning, instead of failing the whole index
+     */
+    public static Record parse(ByteBuffer record) {
+        int limit = record.limit();
+        int idEnd = lineEnd(record, 0);
+        String docId = idEnd > 3 ? decode(record, 3, idEnd).trim() : "";
+
+        StringBuilder contents = new StringBuilder(limit);
+        for (int pos = nextLine(record, 0); pos < limit; pos = nextLine(record, pos)) {
+            int end = lineEnd(record, pos);
+            if (end == pos || isMarker(record, pos, (byte) 'W') || isMarker(record, pos, (byte) 'I')) {
+                continue;
+            }
+            contents.append(decode(record, pos, end)).append('\n');
+        }
+        if (!isNumber(docId)) {
+            int firstLine = contents.indexOf("\n");
+            System.err.println("Skipping the record with the id '" + docId + "', that is not a number: "
+                    + contents.substring(0, Math.min(firstLine >= 0 ? firstLine : contents.length(), 80)).trim());
+            return null;
+        }
+        return new Record(docId, contents.toString());
+    }
+
+    /**
+     * @return true if the id can be stored as the numeric doc value of the record
+     */
+    private static boolean isNumber(String docId) {
+        if (docId.isEmpty() || docId.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < docId.length(); i++) {
+            if (docId.charAt(i) < '0' || docId.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the line that starts at pos is a marker like ".I" or ".W"
+     */
+    private static boolean isMarker(ByteBuffer buffer, int pos, byte marker) {
+        return pos + 1 < buffer.limit() && buffer.get(pos) == '.' && buffer.get(pos + 1) == marker;
+    }
+
+    /**
+     * @return Position after the '\n' of the line that starts at pos, or the limit of the buffer
+     */
+    private static int nextLine(ByteBuffer buffer, int pos) {
+        int limit = buffer.limit();
+        while (pos < limit && buffer.get(pos) != '\n') {
+            pos++;
+        }
+        return Math.min(pos + 1, limit);
+    }
+
+    /**
+     * @return Position of the end of the line that starts at pos, without its '\r' or '\n'
+     */
+    private static int lineEnd(ByteBuffer buffer, int pos) {
+        int limit = buffer.limit();
+        while (pos < limit && buffer.get(pos) != '\n' && buffer.get(pos) != '\r') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(start).limit(end);
+        return slice.slice();
+    }
+
+    private static String decode(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.duplicate().position(start).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,4 +1,6 @@
-import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -57,16 +59,14 @@ public class TrainingTestMedline {
 
     /**
      * This function obtain results of training with JM
+     * @param evaluator evaluator of the queries over the index
      * @param metrica   metric chosen by user
-     * @param pathname  index's path
      * @param n         value where ranking will be cut
-     * @param g1        queries
      * @param valores   array with the starting querie and the ending querie
      * @return          It returns training results
      * @throws IOException
-     * @throws ParseException
      */
-    private static List<Double> entrenarjm(String metrica, String pathname, int n, String g1, int[] valores) throws IOException, ParseException {
+    private static List<Double> entrenarjm(MedlineEvaluator evaluator, String metrica, int n, int[] valores) throws IOException {
 
         // Variable initialization
         List<Double> lista = new ArrayList<>();
@@ -75,11 +75,8 @@ public class TrainingTestMedline {
         // We obtain results for all values of lambda
         for (double i=0.1; i<=1.0; i+=0.1 ){
 
-            // Creating SearchEvalMedline parameters
-            String[] parametros = crear_parametros(true,i,pathname,String.valueOf(n),g1,valores[1],valores[0]);
-
-            // Function that will return results of calling SearchEvalMedline
-            List<Double> anadir = resultados(metrica, parametros);
+            // Function that will return results of the evaluation with this lambda
+            List<Double> anadir = resultados(evaluator, metrica, new LMJelinekMercerSimilarity((float) i), valores[0], valores[1], n);
             // Adding new values to the list
             lista.addAll(anadir);
 
@@ -94,99 +91,44 @@ public class TrainingTestMedline {
 
     /**
      * It obtains the test results
+     * @param evaluator     Evaluator of the queries over the index
      * @param metrica       Meter that will be used
-     * @param parametros    SearchEvalMedline parameters
+     * @param similarity    Model of the search
+     * @param primera       Starting querie
+     * @param ultima        Ending querie
+     * @param n             Ranking's cut
      * @return              It returns the test results
      * @throws IOException
-     * @throws ParseException
      */
-    private static List<Double> test(String metrica, String[] parametros) throws IOException, ParseException {
-        List<Double> resultados = resultados(metrica, parametros);
+    private static List<Double> test(MedlineEvaluator evaluator, String metrica, Similarity similarity, int primera, int ultima, int n) throws IOException {
+        List<Double> resultados = resultados(evaluator, metrica, similarity, primera, ultima, n);
         resultados.add(media(resultados));
         return resultados;
     }
 
     /**
-     * Function that obtains results of SearchEvalMedline
+     * Function that obtains results of the evaluation
+     * @param evaluator     Evaluator of the queries over the index
      * @param metrica       Meter used
-     * @param parametros    Parameters needed in SearchEvalMedline
+     * @param similarity    Model of the search
+     * @param primera       Starting querie
+     * @param ultima        Ending querie
+     * @param n             Ranking's cut
      * @return              Returns the list of results
      * @throws IOException
-     * @throws ParseException
      */
-    private static List<Double> resultados(String metrica, String[] parametros) throws IOException, ParseException {
-        // Variable initialization
-        List<Double> resultados;
-        SearchEvalMedline evalMedline = new SearchEvalMedline();
-
-        // Cleaning SearchEvalMedline lists
-        evalMedline.apnList.clear();
-        evalMedline.recallList.clear();
-        evalMedline.pnList.clear();
-
-        // We call evalMedline.main() method
-        evalMedline.main(parametros);
+    private static List<Double> resultados(MedlineEvaluator evaluator, String metrica, Similarity similarity, int primera, int ultima, int n) throws IOException {
+        // The evaluator keeps the index open between calls, and only the metrics are computed
+        MedlineEvaluator.Result result = evaluator.evaluate(similarity, primera, ultima, n);
 
         // Choose the list of results acording to the meter
-        if(Objects.equals(metrica, "P")){
-            resultados = evalMedline.pnList;
-        }else if(Objects.equals(metrica, "R")){
-            resultados = evalMedline.recallList;
-        }else{
-            resultados = evalMedline.apnList;
+        List<Double> resultados = new ArrayList<>(result.size() + 1);
+        for (double valor : result.metric(metrica)) {
+            resultados.add(valor);
         }
         return resultados;
     }
 
-    /**
-     * Function that creates SearchEvalMedline parameters
-     * @param evaljm        Boolean that indicates if it's jm or tfidf
-     * @param lambda        Lambda's value
-     * @param pathname      Index's path
-     * @param n             Ranking's cut
-     * @param q1            Queries values
-     * @param v2            Ending querie
-     * @param v1            Starting querie
-     * @return              It returns the array with parameters
-     */
-    static String[] crear_parametros(boolean evaljm, double lambda, String pathname, String n, String q1, int v2, int v1){
-
-        // Variable initialization
-        String[] parametros;
-        int i=2;
-        String[] parametros_comunes = new String[8];
-
-        // If evaljm it will be added "-search jm lambda" but if tfidf it will be added "-search tfidf"
-        if(evaljm) {
-            parametros = new String[11];
-            parametros[0]="-search";
-            parametros[1] = "jm";
-            parametros[2] = String.valueOf(lambda);
-            i++;
-        }else{
-            parametros = new String[10];
-            parametros[0]="-search";
-            parametros[1] = "tfidf";
-        }
-
-        // All this parameters are added to both
-        parametros_comunes[0] = "-indexin";
-        parametros_comunes[1] = pathname;
-        parametros_comunes[2] = "-cut";
-        parametros_comunes[3] = n;
-        parametros_comunes[4] = "-top";
-        parametros_comunes[5] = String.valueOf(v2-v1);
-        parametros_comunes[6] = "-queries";
-        parametros_comunes[7] = q1;
-
-        // Parameters are added to array
-        for(int a=i;a<=(7+i);a++){
-            parametros[a]=parametros_comunes[a-i];
-        }
-
-        return parametros;
-    }
-
     /**
      * This function obtains with which alpha we have obtained better results
      * @param resultados_entrenamiento  Results of training
@@ -433,47 +375,50 @@ public class TrainingTestMedline {
 
         List<Double> resultados_test;
 
-        // Calling the corresponding methods acording to which option has been chosen
-        if(evaljm){
-
-            // We obtain training results
-            List<Double> resultados_entrenamiento;
-            resultados_entrenamiento=entrenarjm(metrica,pathname,n,g1, valores);
-
-            // Creating training results' csv
-            String nombre_archivo = "medline.jm.training."+g1+".test."+g2+"."+metrica+n+".training.csv";
-            String[] datos = new String[3];
-            datos[0] = "entrenamiento";
-            datos[1] = metrica+"@"+n;
-            obtener_csv(nombre_archivo,datos,valores[0],resultados_entrenamiento);
-
-            // Obtain which lambda has had best results. We will use it in the test
-            double mejor_lambda =obtener_mejor_lambda(resultados_entrenamiento,valores[1]-valores[0]);
-
-            // We obtain test results
-            String[] parametros = crear_parametros(true,mejor_lambda,pathname,String.valueOf(n),g2,valores[3],valores[2]);
-            resultados_test = test(metrica,parametros);
-
-            // Creating test results' csv
-            datos[0] = "test";
-            datos[1] = String.valueOf(mejor_lambda);
-            datos[2] = metrica+"@"+n;
-            nombre_archivo = "medline.jm.training."+g1+".test."+g2+"."+metrica+n+".test.csv";
-            obtener_csv(nombre_archivo,datos,valores[2],resultados_test);
-
-        }else{
-
-            // In TFIDF there is no training, we obtain directly test results
-            String[] parametros = crear_parametros(false,0.0,pathname,String.valueOf(n),g1,valores[1],valores[0]);
-            resultados_test = test(metrica,parametros);
-
-            // Creatin test results' csv
-            String nombre_archivo= "medline.tfidf.training.null.test."+g1+"."+metrica+n+".test.csv";
-            String[] datos= new String[3];
-            datos[0]="test";
-            datos[1]="";
-            datos[2]= metrica+"@"+n;
-            obtener_csv(nombre_archivo,datos,valores[0],resultados_test);
+        // The index, queries and judgments are read once for all the evaluations
+        try (MedlineEvaluator evaluator = new MedlineEvaluator(docDir, Paths.get(SearchEvalMedline.MED_DIR),
+                Runtime.getRuntime().availableProcessors(), 0)) {
+
+            // Calling the corresponding methods acording to which option has been chosen
+            if(evaljm){
+
+                // We obtain training results
+                List<Double> resultados_entrenamiento;
+                resultados_entrenamiento=entrenarjm(evaluator,metrica,n, valores);
+
+                // Creating training results' csv
+                String nombre_archivo = "medline.jm.training."+g1+".test."+g2+"."+metrica+n+".training.csv";
+                String[] datos = new String[3];
+                datos[0] = "entrenamiento";
+                datos[1] = metrica+"@"+n;
+                obtener_csv(nombre_archivo,datos,valores[0],resultados_entrenamiento);
+
+                // Obtain which lambda has had best results. We will use it in the test
+                double mejor_lambda =obtener_mejor_lambda(resultados_entrenamiento,valores[1]-valores[0]);
+
+                // We obtain test results
+                resultados_test = test(evaluator,metrica,new LMJelinekMercerSimilarity((float) mejor_lambda),valores[2],valores[3],n);
+
+                // Creating test results' csv
+                datos[0] = "test";
+                datos[1] = String.valueOf(mejor_lambda);
+                datos[2] = metrica+"@"+n;
+                nombre_archivo = "medline.jm.training."+g1+".test."+g2+"."+metrica+n+".test.csv";
+                obtener_csv(nombre_archivo,datos,valores[2],resultados_test);
+
+            }else{
+
+                // In TFIDF there is no training, we obtain directly test results
+                resultados_test = test(evaluator,metrica,new ClassicSimilarity(),valores[0],valores[1],n);
+
+                // Creatin test results' csv
+                String nombre_archivo= "medline.tfidf.training.null.test."+g1+"."+metrica+n+".test.csv";
+                String[] datos= new String[3];
+                datos[0]="test";
+                datos[1]="";
+                datos[2]= metrica+"@"+n;
+                obtener_csv(nombre_archivo,datos,valores[0],resultados_test);
+            }
         }
 
 
@@ -0,0 +1,99 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Records found by MedlineSplitter, wherever the edges of the mapped windows fall.
+ */
+public class MedlineSplitterTest {
+
+    // Records of different sizes, with LF and CRLF lines and characters of several bytes
+    private static final List<String> RECORDS = Arrays.asList(
+            ".I 1\n.W\ncorrelation between maternal and fetal plasma levels of glucose\n",
+            ".I 2\r\n.W\r\nthe renal handling of amino acids\r\n\r\nin the newborn\r\n",
+            ".I 3\n.W\n\u03b2-adrenergic blockade\n",
+            ".I 14\n.W\na\n",
+            ".I 1033\n.W\nlongest record of the file, it has more text than the others so the windows must be at\n"
+                    + "least this size: electron microscopy of the peripheral nerves of rats\n");
+
+    @TempDir
+    Path tempDir;
+
+    private Path collection(List<String> records) throws IOException {
+        Path file = tempDir.resolve("MED.ALL");
+        Files.write(file, String.join("", records).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static List<String> split(Path file, long windowSize) throws Exception {
+        List<String> records = new ArrayList<>();
+        MedlineSplitter.split(file, windowSize, record -> records.add(StandardCharsets.UTF_8.decode(record).toString()));
+        return records;
+    }
+
+    private static int maxRecordSize(List<String> records) {
+        return records.stream().mapToInt(record -> record.getBytes(StandardCharsets.UTF_8).length).max().getAsInt();
+    }
+
+    @Test
+    public void recordsAcrossWindowEdges() throws Exception {
+        Path file = collection(RECORDS);
+        long size = Files.size(file);
+        // Every window size puts the edges in a different place: inside a line, a marker or a line break
+        for (long windowSize = maxRecordSize(RECORDS) + 2; windowSize <= size + 1; windowSize++) {
+            assertEquals(RECORDS, split(file, windowSize), "window of " + windowSize + " bytes");
+        }
+
+        // The whole file fits in the default window
+        List<String> records = new ArrayList<>();
+        MedlineSplitter.split(file, record -> records.add(StandardCharsets.UTF_8.decode(record).toString()));
+        assertEquals(RECORDS, records);
+    }
+
+    @Test
+    public void recordBiggerThanTheWindow() throws Exception {
+        Path file = collection(RECORDS);
+        assertThrows(IOException.class, () -> split(file, maxRecordSize(RECORDS) - 1));
+    }
+
+    @Test
+    public void textBeforeTheFirstRecordIsIgnored() throws Exception {
+        Path file = collection(Arrays.asList("header\n", RECORDS.get(0), RECORDS.get(1)));
+        assertEquals(RECORDS.subList(0, 2), split(file, 1L << 28));
+    }
+
+    @Test
+    public void parseIdAndContents() throws Exception {
+        Path file = collection(RECORDS);
+        List<MedlineSplitter.Record> parsed = new ArrayList<>();
+        MedlineSplitter.split(file, record -> parsed.add(MedlineSplitter.parse(record)));
+
+        assertEquals(RECORDS.size(), parsed.size());
+        assertEquals("1", parsed.get(0).docId);
+        assertEquals("correlation between maternal and fetal plasma levels of glucose\n", parsed.get(0).contents);
+        assertEquals("2", parsed.get(1).docId);
+        assertEquals("the renal handling of amino acids\nin the newborn\n", parsed.get(1).contents);
+        assertEquals("\u03b2-adrenergic blockade\n", parsed.get(2).contents);
+        assertEquals("1033", parsed.get(4).docId);
+    }
+
+    @Test
+    public void recordsWithoutANumericIdAreSkipped() {
+        for (String id : Arrays.asList("", "7x", "1234567890123456789")) {
+            String record = ".I " + id + "\n.W\ntext\n";
+            assertNull(MedlineSplitter.parse(ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8))), "id " + id);
+        }
+    }
+}